@@ -0,0 +1,158 @@
+package org.embulk.output.elasticsearch;
+
+import com.google.common.base.Throwables;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.embulk.spi.DataException;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * ElasticsearchBulkFileReplayer sends bulk files written by {@code ElasticsearchBulkFileWriter} to the index of the task.
+ *
+ * Actions are grouped again by bulk_actions and bulk_size, and up to concurrent_requests bulk requests are sent
+ * at the same time through {@code ElasticsearchBulkScheduler}.
+ */
+public class ElasticsearchBulkFileReplayer
+{
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final Logger log;
+    private final PluginTask task;
+    private final ElasticsearchHttpClient client;
+
+    public ElasticsearchBulkFileReplayer(PluginTask task, ElasticsearchHttpClient client)
+    {
+        this.log = Exec.getLogger(getClass());
+        this.task = task;
+        this.client = client;
+    }
+
+    // Returns the number of replayed actions
+    public long replay()
+    {
+        List<Path> files = listFiles();
+        if (files.isEmpty()) {
+            log.warn("No bulk files found in {}", task.getBulkFileDirectory().get());
+            return 0;
+        }
+
+        int concurrency = Math.max(1, task.getConcurrentRequests());
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        // Bounds the number of read but not yet sent bulk requests
+        Semaphore queued = new Semaphore(concurrency * 2);
+        List<Future<?>> futures = new ArrayList<>();
+        ElasticsearchBulkScheduler scheduler = ElasticsearchBulkScheduler.acquire(task, client);
+        long count = 0;
+        try {
+            for (Path file : files) {
+                log.info("Replaying bulk file {}", file);
+                try (BufferedReader reader = openReader(file)) {
+                    List<byte[]> actions = new ArrayList<>();
+                    long bytes = 0;
+                    String actionLine;
+                    while ((actionLine = reader.readLine()) != null) {
+                        if (actionLine.isEmpty()) {
+                            continue;
+                        }
+                        String sourceLine = reader.readLine();
+                        if (sourceLine == null) {
+                            throw new DataException(String.format("Bulk file %s ends without source of action %s", file, actionLine));
+                        }
+                        byte[] action = (actionLine + "\n" + sourceLine + "\n").getBytes(StandardCharsets.UTF_8);
+                        actions.add(action);
+                        bytes += action.length;
+                        count++;
+                        if (actions.size() >= task.getBulkActions() || bytes >= task.getBulkSize()) {
+                            futures.add(submit(executor, queued, scheduler, actions));
+                            actions = new ArrayList<>();
+                            bytes = 0;
+                        }
+                    }
+                    if (!actions.isEmpty()) {
+                        futures.add(submit(executor, queued, scheduler, actions));
+                    }
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            client.logBulkTraces();
+            return count;
+        }
+        catch (IOException ex) {
+            throw new DataException(ex);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new DataException(ex);
+        }
+        catch (ExecutionException ex) {
+            throw Throwables.propagate(ex.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+            ElasticsearchBulkScheduler.release();
+        }
+    }
+
+    private Future<?> submit(ExecutorService executor, final Semaphore queued, final ElasticsearchBulkScheduler scheduler,
+                             final List<byte[]> actions) throws InterruptedException
+    {
+        queued.acquire();
+        return executor.submit(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    client.pushActions(actions, task, scheduler);
+                }
+                finally {
+                    queued.release();
+                }
+            }
+        });
+    }
+
+    private List<Path> listFiles()
+    {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(task.getBulkFileDirectory().get()), "*.{ndjson,ndjson.gz}")) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        catch (IOException ex) {
+            throw new DataException(ex);
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    private BufferedReader openReader(Path file) throws IOException
+    {
+        InputStream in = Files.newInputStream(file);
+        if (file.getFileName().toString().endsWith(ElasticsearchBulkFileWriter.GZIP_EXTENSION)) {
+            in = new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+}
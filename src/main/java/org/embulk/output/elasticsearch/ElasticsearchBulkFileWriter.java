@@ -0,0 +1,97 @@
+package org.embulk.output.elasticsearch;
+
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.embulk.spi.DataException;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * ElasticsearchBulkFileWriter writes bulk request bodies to rolling NDJSON files in bulk_file_directory.
+ *
+ * Files are named {@code <index>.<yyyyMMdd-HHmmss>.<task>.<sequence>.ndjson[.gz]} and a new file is started
+ * after bulk_file_max_bytes of uncompressed bodies. A body is never split across files.
+ */
+public class ElasticsearchBulkFileWriter
+        implements AutoCloseable
+{
+    public static final String EXTENSION = ".ndjson";
+    public static final String GZIP_EXTENSION = ".ndjson.gz";
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final Logger log;
+    private final Path directory;
+    private final String prefix;
+    private final long maxBytes;
+    private final boolean gzip;
+    private int sequence;
+    private OutputStream out;
+    private long writtenBytes;
+
+    public ElasticsearchBulkFileWriter(PluginTask task, int taskIndex)
+    {
+        this.log = Exec.getLogger(getClass());
+        this.directory = Paths.get(task.getBulkFileDirectory().get());
+        this.prefix = String.format("%s.%s.%03d", task.getIndex(), new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()), taskIndex);
+        this.maxBytes = task.getBulkFileMaxBytes();
+        this.gzip = task.getBulkFileCompression() == ElasticsearchOutputPluginDelegate.BulkFileCompression.GZIP;
+        this.sequence = 0;
+    }
+
+    public synchronized void write(byte[] body)
+    {
+        try {
+            if (out == null || writtenBytes >= maxBytes) {
+                roll();
+            }
+            out.write(body);
+            writtenBytes += body.length;
+        }
+        catch (IOException ex) {
+            throw new DataException(ex);
+        }
+    }
+
+    private void roll() throws IOException
+    {
+        closeFile();
+        Files.createDirectories(directory);
+        Path path = directory.resolve(String.format("%s.%05d%s", prefix, sequence++, gzip ? GZIP_EXTENSION : EXTENSION));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        OutputStream stream = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+        out = gzip ? new GZIPOutputStream(stream, BUFFER_SIZE) : stream;
+        writtenBytes = 0;
+        log.info("Writing bulk requests to {}", path);
+    }
+
+    private void closeFile() throws IOException
+    {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        try {
+            closeFile();
+        }
+        catch (IOException ex) {
+            throw new DataException(ex);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package org.embulk.output.elasticsearch;
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+
+/**
+ * ElasticsearchBulkScheduler coordinates bulk requests sent by all tasks running in the same JVM.
+ *
+ * It limits the number of bulk requests in flight with a fair semaphore, shares one transport (and its connection pool)
+ * between tasks, and keeps one backoff state so that tasks slow down together when the cluster rejects requests.
+ * Optional token buckets cap the documents and bytes sent per second by the whole JVM.
+ * When {@code ElasticsearchClusterPressureMonitor} is enabled, bulk requests are also delayed while the cluster is under pressure.
+ * When {@code ElasticsearchCircuitBreaker} is enabled, bulk requests are parked or failed fast while the cluster keeps failing.
+ * {@code ElasticsearchMetrics} of the scheduler aggregates bulk requests of all tasks.
+ * When {@code ElasticsearchRolloverManager} is enabled, rollover conditions are checked between bulk requests of all tasks.
+ * When encoder_threads is greater than 1, tasks encode records on one shared encoder pool, so the number of encoder threads is bounded per JVM.
+ */
+public class ElasticsearchBulkScheduler
+{
+    private static ElasticsearchBulkScheduler instance;
+    private static int referenceCount = 0;
+
+    private final Logger log;
+    private final Semaphore permits;
+    private final ElasticsearchTransport transport;
+    private final RateLimiter documentsLimiter;
+    private final RateLimiter bytesLimiter;
+    private final ElasticsearchCircuitBreaker circuitBreaker;
+    private final ElasticsearchMetrics metrics;
+    private final ElasticsearchRolloverManager rolloverManager;
+    private final ForkJoinPool encoderPool;
+    private ElasticsearchClusterPressureMonitor pressureMonitor;
+    private volatile long pressureDelayMillis;
+    private final long initialBackoffMillis;
+    private final long maximumBackoffMillis;
+    private long backoffMillis;
+    private long backoffUntilMillis;
+
+    private ElasticsearchBulkScheduler(PluginTask task, ElasticsearchTransport transport)
+    {
+        this.log = Exec.getLogger(getClass());
+        this.permits = new Semaphore(Math.max(1, task.getConcurrentRequests()), true);
+        this.transport = transport;
+        this.documentsLimiter = task.getMaximumDocumentsPerSecond().isPresent() ? RateLimiter.create(task.getMaximumDocumentsPerSecond().get()) : null;
+        this.bytesLimiter = task.getMaximumBytesPerSecond().isPresent() ? RateLimiter.create(task.getMaximumBytesPerSecond().get()) : null;
+        this.circuitBreaker = task.getCircuitBreakerFailureThreshold() > 0
+                ? new ElasticsearchCircuitBreaker(task.getCircuitBreakerFailureThreshold(), task.getCircuitBreakerOpenMillis(), task.getCircuitBreakerFailFast())
+                : null;
+        this.metrics = new ElasticsearchMetrics();
+        this.rolloverManager = ElasticsearchRolloverManager.isEnabled(task) ? new ElasticsearchRolloverManager(task) : null;
+        this.encoderPool = task.getEncoderThreads() > 1 ? new ForkJoinPool(task.getEncoderThreads()) : null;
+        this.initialBackoffMillis = task.getInitialRetryIntervalMillis();
+        this.maximumBackoffMillis = task.getMaximumRetryIntervalMillis();
+        this.backoffMillis = 0;
+        this.backoffUntilMillis = 0;
+        this.pressureDelayMillis = 0;
+    }
+
+    // Should be paired with release() by each task
+    public static synchronized ElasticsearchBulkScheduler acquire(PluginTask task, ElasticsearchHttpClient client)
+    {
+        if (instance == null) {
+            instance = new ElasticsearchBulkScheduler(task, client.createTransport(task));
+            instance.log.info("Started bulk scheduler with {} concurrent requests", task.getConcurrentRequests());
+            if (task.getClusterPressureMonitor()) {
+                instance.pressureMonitor = new ElasticsearchClusterPressureMonitor(task, instance);
+                instance.pressureMonitor.start();
+            }
+            instance.metrics.start(task);
+        }
+        referenceCount++;
+        return instance;
+    }
+
+    public static synchronized void release()
+    {
+        if (referenceCount > 0 && --referenceCount == 0) {
+            if (instance.pressureMonitor != null) {
+                instance.pressureMonitor.stop();
+            }
+            instance.metrics.stop();
+            if (instance.encoderPool != null) {
+                instance.encoderPool.shutdown();
+            }
+            instance.transport.close();
+            instance = null;
+        }
+    }
+
+    public ElasticsearchTransport getTransport()
+    {
+        return transport;
+    }
+
+    // Returns null when circuit breaker is disabled
+    public ElasticsearchCircuitBreaker getCircuitBreaker()
+    {
+        return circuitBreaker;
+    }
+
+    // Returns null when rollover is disabled
+    public ElasticsearchRolloverManager getRolloverManager()
+    {
+        return rolloverManager;
+    }
+
+    // Returns null when encoder_threads is 1 and records are encoded by the calling thread
+    public ForkJoinPool getEncoderPool()
+    {
+        return encoderPool;
+    }
+
+    public ElasticsearchMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    // Blocks until the shared backoff expires, the rate limits allow the request and a request slot is available
+    public void acquirePermit(int documents, long bytes)
+    {
+        if (documentsLimiter != null && documents > 0) {
+            documentsLimiter.acquire(documents);
+        }
+        if (bytesLimiter != null && bytes > 0) {
+            bytesLimiter.acquire((int) Math.min(bytes, Integer.MAX_VALUE));
+        }
+        awaitBackoff();
+        try {
+            permits.acquire();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+
+    public void releasePermit()
+    {
+        permits.release();
+    }
+
+    // Called when the cluster rejected a request (429). All tasks wait before sending next bulk request.
+    public synchronized void onRejected()
+    {
+        metrics.onRejected();
+        if (backoffMillis == 0) {
+            backoffMillis = initialBackoffMillis;
+        }
+        else {
+            backoffMillis = Math.min(backoffMillis * 2, maximumBackoffMillis);
+        }
+        backoffUntilMillis = Math.max(backoffUntilMillis, System.currentTimeMillis() + backoffMillis);
+        log.warn("Bulk request was rejected by Elasticsearch. Backing off {} ms", backoffMillis);
+    }
+
+    public synchronized void onSucceeded()
+    {
+        backoffMillis = 0;
+    }
+
+    public void setPressureDelayMillis(long pressureDelayMillis)
+    {
+        this.pressureDelayMillis = pressureDelayMillis;
+    }
+
+    private void awaitBackoff()
+    {
+        long delay = pressureDelayMillis;
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            }
+        }
+
+        while (true) {
+            long waitMillis;
+            synchronized (this) {
+                waitMillis = backoffUntilMillis - System.currentTimeMillis();
+            }
+            if (waitMillis <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(waitMillis);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.embulk.output.elasticsearch;
+
+/**
+ * ElasticsearchBulkTrace is timings of one bulk request, from encoding records to the last response including retries.
+ *
+ * Queue wait is time waiting for the bulk scheduler, HTTP is time on the wire and in Elasticsearch,
+ * and took is time spent by Elasticsearch reported in bulk responses.
+ */
+public class ElasticsearchBulkTrace
+{
+    private final long sequence;
+    private final int documents;
+    private long bytes;
+    private String node;
+    private long encodeMillis;
+    private long queueWaitMillis;
+    private long httpMillis;
+    private long tookMillis;
+    private int retries;
+
+    public ElasticsearchBulkTrace(long sequence, int documents)
+    {
+        this.sequence = sequence;
+        this.documents = documents;
+    }
+
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+    public int getDocuments()
+    {
+        return documents;
+    }
+
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    public int getRetries()
+    {
+        return retries;
+    }
+
+    public long getTotalMillis()
+    {
+        return encodeMillis + queueWaitMillis + httpMillis;
+    }
+
+    public long getEncodeMillis()
+    {
+        return encodeMillis;
+    }
+
+    public long getQueueWaitMillis()
+    {
+        return queueWaitMillis;
+    }
+
+    public long getHttpMillis()
+    {
+        return httpMillis;
+    }
+
+    public long getTookMillis()
+    {
+        return tookMillis;
+    }
+
+    public void setBytes(long bytes)
+    {
+        this.bytes = bytes;
+    }
+
+    public void setNode(String node)
+    {
+        this.node = node;
+    }
+
+    public void addEncodeMillis(long millis)
+    {
+        encodeMillis += millis;
+    }
+
+    public void addQueueWaitMillis(long millis)
+    {
+        queueWaitMillis += millis;
+    }
+
+    public void addHttpMillis(long millis)
+    {
+        httpMillis += millis;
+    }
+
+    public void addTookMillis(long millis)
+    {
+        tookMillis += millis;
+    }
+
+    public void addRetry()
+    {
+        retries++;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("batch #%d: %d docs, %d bytes, node %s, total %d ms (encode %d ms, queue wait %d ms, http %d ms, took %d ms), %d retries",
+                sequence, documents, bytes, node, getTotalMillis(), encodeMillis, queueWaitMillis, httpMillis, tookMillis, retries);
+    }
+}
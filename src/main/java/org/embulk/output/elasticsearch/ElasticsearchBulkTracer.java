@@ -0,0 +1,121 @@
+package org.embulk.output.elasticsearch;
+
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * ElasticsearchBulkTracer keeps traces of bulk requests of a task.
+ *
+ * The last bulk_trace_size traces are kept in a ring buffer, and the slowest bulk_trace_slowest traces of the whole task
+ * are kept separately. Both are logged with a summary when the task commits.
+ */
+public class ElasticsearchBulkTracer
+{
+    private static final Comparator<ElasticsearchBulkTrace> BY_TOTAL_MILLIS = new Comparator<ElasticsearchBulkTrace>() {
+        @Override
+        public int compare(ElasticsearchBulkTrace a, ElasticsearchBulkTrace b)
+        {
+            return Long.compare(a.getTotalMillis(), b.getTotalMillis());
+        }
+    };
+
+    private final Logger log;
+    private final ElasticsearchBulkTrace[] ring;
+    private final int slowestSize;
+    private final PriorityQueue<ElasticsearchBulkTrace> slowest;
+    private final long slowThresholdMillis;
+    private long sequence;
+    private long count;
+    private long totalEncodeMillis;
+    private long totalQueueWaitMillis;
+    private long totalHttpMillis;
+    private long totalTookMillis;
+
+    public ElasticsearchBulkTracer(PluginTask task)
+    {
+        this.log = Exec.getLogger(getClass());
+        this.ring = new ElasticsearchBulkTrace[task.getBulkTraceSize()];
+        this.slowestSize = Math.max(0, task.getBulkTraceSlowest());
+        // Min-heap, so that the fastest of the slowest traces is evicted first
+        this.slowest = new PriorityQueue<>(Math.max(1, slowestSize), BY_TOTAL_MILLIS);
+        this.slowThresholdMillis = task.getBulkTraceSlowThresholdMillis().or(-1L);
+    }
+
+    public synchronized ElasticsearchBulkTrace newTrace(int documents)
+    {
+        return new ElasticsearchBulkTrace(sequence++, documents);
+    }
+
+    public synchronized void record(ElasticsearchBulkTrace trace)
+    {
+        ring[(int) (trace.getSequence() % ring.length)] = trace;
+        count++;
+        totalEncodeMillis += trace.getEncodeMillis();
+        totalQueueWaitMillis += trace.getQueueWaitMillis();
+        totalHttpMillis += trace.getHttpMillis();
+        totalTookMillis += trace.getTookMillis();
+        if (slowestSize > 0) {
+            slowest.add(trace);
+            if (slowest.size() > slowestSize) {
+                slowest.poll();
+            }
+        }
+        if (isSlow(trace)) {
+            log.warn("Slow bulk request. {}", trace);
+        }
+    }
+
+    // Always false when bulk_trace_slow_threshold_millis is not set
+    boolean isSlow(ElasticsearchBulkTrace trace)
+    {
+        return slowThresholdMillis >= 0 && trace.getTotalMillis() >= slowThresholdMillis;
+    }
+
+    // Slowest traces of the task, slowest first
+    synchronized List<ElasticsearchBulkTrace> getSlowestTraces()
+    {
+        List<ElasticsearchBulkTrace> slowestTraces = new ArrayList<>(slowest);
+        Collections.sort(slowestTraces, Collections.reverseOrder(BY_TOTAL_MILLIS));
+        return slowestTraces;
+    }
+
+    // Traces in the ring buffer, oldest first
+    synchronized List<ElasticsearchBulkTrace> getRecentTraces()
+    {
+        List<ElasticsearchBulkTrace> recentTraces = new ArrayList<>();
+        for (long i = Math.max(0, sequence - ring.length); i < sequence; i++) {
+            ElasticsearchBulkTrace trace = ring[(int) (i % ring.length)];
+            if (trace != null && trace.getSequence() == i) {
+                recentTraces.add(trace);
+            }
+        }
+        return recentTraces;
+    }
+
+    public synchronized void logSummary()
+    {
+        if (count == 0) {
+            return;
+        }
+        // Time in HTTP but not in Elasticsearch is spent by network and HTTP handling
+        log.info(String.format("Bulk requests: %d. Average encode %d ms, queue wait %d ms, http %d ms, took %d ms, network and HTTP overhead %d ms",
+                count, totalEncodeMillis / count, totalQueueWaitMillis / count, totalHttpMillis / count, totalTookMillis / count,
+                Math.max(0, totalHttpMillis - totalTookMillis) / count));
+
+        for (ElasticsearchBulkTrace trace : getSlowestTraces()) {
+            log.info("Slowest bulk request. {}", trace);
+        }
+        if (log.isDebugEnabled()) {
+            for (ElasticsearchBulkTrace trace : getRecentTraces()) {
+                log.debug("Recent bulk request. {}", trace);
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package org.embulk.output.elasticsearch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Strings;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.embulk.spi.Column;
+import org.embulk.spi.ColumnVisitor;
+import org.embulk.spi.Exec;
+import org.embulk.spi.Schema;
+import org.slf4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ElasticsearchCapacityCalibrator derives bulk_actions, bulk_size and concurrent_requests from the cluster at startup.
+ *
+ * It reads http.max_content_length and the write thread pool of data nodes, and the number of primary shards of the target index.
+ * Then it sends bulk requests of sample documents built from the schema to a temporary index, and chooses the smallest
+ * bulk_actions whose throughput is close to the best one. Warm-up requests are sent before measuring, so that creating
+ * the temporary index and cold JVMs don't slow down the first candidate. The temporary index is deleted after probing.
+ */
+public class ElasticsearchCapacityCalibrator
+{
+    // Candidates of bulk_actions. Each of them is probed PROBE_ROUNDS times.
+    static final int[] PROBE_BULK_ACTIONS = {100, 500, 1000, 2500, 5000};
+    static final int PROBE_ROUNDS = 3;
+    // Unmeasured requests of the smallest candidate sent before probing
+    static final int WARM_UP_ROUNDS = 2;
+    // bulk_actions reaching this ratio of the best throughput is good enough. Smaller bulks use less heap on both sides.
+    static final double THROUGHPUT_RATIO = 0.9;
+    static final long MINIMUM_BULK_SIZE = 1024 * 1024;
+    static final long DEFAULT_MAX_CONTENT_LENGTH = 100 * 1024 * 1024;
+
+    private final Logger log;
+    private final PluginTask task;
+    private final ElasticsearchHttpClient client;
+    private final Schema schema;
+    private final ObjectMapper mapper;
+
+    public ElasticsearchCapacityCalibrator(PluginTask task, ElasticsearchHttpClient client, Schema schema)
+    {
+        this.log = Exec.getLogger(getClass());
+        this.task = task;
+        this.client = client;
+        this.schema = schema;
+        this.mapper = new ObjectMapper();
+    }
+
+    public static class Recommendation
+    {
+        private final int bulkActions;
+        private final long bulkSize;
+        private final int concurrentRequests;
+
+        public Recommendation(int bulkActions, long bulkSize, int concurrentRequests)
+        {
+            this.bulkActions = bulkActions;
+            this.bulkSize = bulkSize;
+            this.concurrentRequests = concurrentRequests;
+        }
+
+        public int getBulkActions()
+        {
+            return bulkActions;
+        }
+
+        public long getBulkSize()
+        {
+            return bulkSize;
+        }
+
+        public int getConcurrentRequests()
+        {
+            return concurrentRequests;
+        }
+    }
+
+    public Recommendation calibrate()
+    {
+        long maxContentLength = DEFAULT_MAX_CONTENT_LENGTH;
+        int writeThreads = 0;
+        int writeQueueSize = 0;
+        for (JsonNode node : client.getNodesInfo(task).path("nodes")) {
+            maxContentLength = Math.min(maxContentLength, node.path("http").path("max_content_length_in_bytes").asLong(DEFAULT_MAX_CONTENT_LENGTH));
+            if (!isDataNode(node)) {
+                continue;
+            }
+            // Write thread pool is named "bulk" before Elasticsearch 6.3
+            JsonNode threadPool = node.path("thread_pool");
+            JsonNode writePool = threadPool.has("write") ? threadPool.get("write") : threadPool.path("bulk");
+            writeThreads += writePool.path("size").asInt(writePool.path("max").asInt(1));
+            writeQueueSize += Math.max(0, writePool.path("queue_size").asInt(0));
+        }
+        int dataNodes = client.getClusterHealth(task).path("number_of_data_nodes").asInt(1);
+        int primaries = client.getNumberOfShards(task.getAlias().or(task.getIndex()), task);
+        log.info("Cluster capacity: http.max_content_length:{} bytes, data nodes:{}, write threads:{}, write queue:{}, primaries of target index:{}",
+                maxContentLength, dataNodes, writeThreads, writeQueueSize, primaries < 0 ? "unknown" : primaries);
+
+        byte[] action = createSampleAction();
+        int bulkActions = task.getBulkActions();
+        String probeIndex = client.generateNewIndexName(task.getAlias().or(task.getIndex()) + "_calibration");
+        try {
+            bulkActions = probe(probeIndex, action, maxContentLength);
+            if (primaries < 0) {
+                // The temporary index is created with the same defaults and templates as a new target index
+                primaries = client.getNumberOfShards(probeIndex, task);
+            }
+        }
+        catch (RuntimeException ex) {
+            // Probing is best effort. For example, automatic index creation may be disabled.
+            log.warn(String.format("Failed to send probe bulk requests. Keeping bulk_actions %d", bulkActions), ex);
+        }
+        finally {
+            try {
+                client.deleteCalibrationIndex(probeIndex, task);
+            }
+            catch (RuntimeException ex) {
+                log.warn(String.format("Failed to delete calibration index [%s]. Delete it manually", probeIndex), ex);
+            }
+        }
+
+        return new Recommendation(bulkActions,
+                recommendBulkSize(bulkActions, action.length, maxContentLength),
+                recommendConcurrentRequests(writeThreads, Math.max(primaries, 1), dataNodes));
+    }
+
+    // Returns the smallest bulk_actions whose throughput reaches THROUGHPUT_RATIO of the best one
+    private int probe(String probeIndex, byte[] action, long maxContentLength)
+    {
+        double[] documentsPerSecond = new double[PROBE_BULK_ACTIONS.length];
+        byte[] warmUpContent = repeat(action, PROBE_BULK_ACTIONS[0]);
+        for (int round = 0; round < WARM_UP_ROUNDS; round++) {
+            sendProbeBulk(probeIndex, warmUpContent);
+        }
+        for (int i = 0; i < PROBE_BULK_ACTIONS.length; i++) {
+            int actions = PROBE_BULK_ACTIONS[i];
+            if ((long) actions * action.length > maxContentLength / 2) {
+                break;
+            }
+            byte[] content = repeat(action, actions);
+            long elapsedNanos = 0;
+            for (int round = 0; round < PROBE_ROUNDS; round++) {
+                long startedNanos = System.nanoTime();
+                sendProbeBulk(probeIndex, content);
+                elapsedNanos += System.nanoTime() - startedNanos;
+            }
+            documentsPerSecond[i] = (double) actions * PROBE_ROUNDS * TimeUnit.SECONDS.toNanos(1) / Math.max(1, elapsedNanos);
+            log.info("Probed bulk_actions {}: {} documents/sec", actions, (long) documentsPerSecond[i]);
+        }
+        return chooseBulkActions(PROBE_BULK_ACTIONS, documentsPerSecond);
+    }
+
+    private void sendProbeBulk(String probeIndex, byte[] content)
+    {
+        JsonNode response = client.sendProbeBulk(probeIndex, task, content);
+        if (response.path("errors").asBoolean(false)) {
+            throw new IllegalStateException("Probe bulk request had errors: " + response.path("items").path(0));
+        }
+    }
+
+    static int chooseBulkActions(int[] bulkActions, double[] documentsPerSecond)
+    {
+        double best = 0;
+        for (double value : documentsPerSecond) {
+            best = Math.max(best, value);
+        }
+        if (best == 0) {
+            throw new IllegalStateException("No probe bulk request was sent");
+        }
+        for (int i = 0; i < bulkActions.length; i++) {
+            if (documentsPerSecond[i] >= best * THROUGHPUT_RATIO) {
+                return bulkActions[i];
+            }
+        }
+        return bulkActions[bulkActions.length - 1];
+    }
+
+    // Real documents may be larger than sample documents. bulk_size leaves room for twice of the sample size.
+    static long recommendBulkSize(int bulkActions, long actionBytes, long maxContentLength)
+    {
+        long bulkSize = Math.max(bulkActions * actionBytes * 2, MINIMUM_BULK_SIZE);
+        return Math.min(bulkSize, maxContentLength / 2);
+    }
+
+    // A bulk request is split into shard level requests, each of which takes a write thread on the node of the primary.
+    // Primaries are spread over data nodes, so each bulk request takes up to ceil(primaries / data nodes) write threads per node.
+    // Keeping them within the write threads of a node avoids filling the write queues. Primaries on fewer nodes than the
+    // cluster can't use write threads of the other nodes.
+    static int recommendConcurrentRequests(int writeThreads, int primaries, int dataNodes)
+    {
+        int nodes = Math.max(1, dataNodes);
+        int threadsPerNode = Math.max(1, writeThreads / nodes);
+        int shardsPerNode = (Math.max(1, primaries) + nodes - 1) / nodes;
+        return Math.max(1, threadsPerNode / shardsPerNode);
+    }
+
+    private static boolean isDataNode(JsonNode node)
+    {
+        // "roles" is not returned before Elasticsearch 5.0. Data roles are split into data_hot, data_content, etc. since 7.10.
+        if (!node.has("roles")) {
+            return true;
+        }
+        for (JsonNode role : node.get("roles")) {
+            if (role.asText().startsWith("data")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private byte[] createSampleAction()
+    {
+        final ObjectNode document = mapper.createObjectNode();
+        List<Column> columns = schema.getColumns();
+        for (Column column : columns) {
+            column.visit(new ColumnVisitor() {
+                @Override
+                public void booleanColumn(Column column)
+                {
+                    document.put(column.getName(), true);
+                }
+
+                @Override
+                public void longColumn(Column column)
+                {
+                    document.put(column.getName(), 1234567890L);
+                }
+
+                @Override
+                public void doubleColumn(Column column)
+                {
+                    document.put(column.getName(), 12345.6789);
+                }
+
+                @Override
+                public void stringColumn(Column column)
+                {
+                    document.put(column.getName(), Strings.repeat("x", 32));
+                }
+
+                @Override
+                public void timestampColumn(Column column)
+                {
+                    document.put(column.getName(), "2017-01-01T00:00:00.000+0000");
+                }
+
+                @Override
+                public void jsonColumn(Column column)
+                {
+                    document.putObject(column.getName());
+                }
+            });
+        }
+        String action = "{\"index\":{}}\n" + document.toString() + "\n";
+        return action.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] repeat(byte[] action, int count)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(action.length * count);
+        for (int i = 0; i < count; i++) {
+            try {
+                out.write(action);
+            }
+            catch (IOException ex) {
+                throw new IllegalStateException(ex);  // Never happens with ByteArrayOutputStream
+            }
+        }
+        return out.toByteArray();
+    }
+}
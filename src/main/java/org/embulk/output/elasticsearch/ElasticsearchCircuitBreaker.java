@@ -0,0 +1,119 @@
+package org.embulk.output.elasticsearch;
+
+import org.embulk.spi.DataException;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+/**
+ * ElasticsearchCircuitBreaker stops sending bulk requests after sustained failures and lets a single probe request through
+ * after a while to check whether the cluster has recovered. It is shared by all tasks through {@code ElasticsearchBulkScheduler}.
+ */
+public class ElasticsearchCircuitBreaker
+{
+    public enum State
+    {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final Logger log;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final boolean failFast;
+    private State state;
+    private int consecutiveFailures;
+    private long openedAtMillis;
+    private boolean probeInFlight;
+
+    public ElasticsearchCircuitBreaker(int failureThreshold, long openMillis, boolean failFast)
+    {
+        this.log = Exec.getLogger(getClass());
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.failFast = failFast;
+        this.state = State.CLOSED;
+        this.consecutiveFailures = 0;
+        this.probeInFlight = false;
+    }
+
+    public boolean isFailFast()
+    {
+        return failFast;
+    }
+
+    // Blocks while the circuit is open, or throws DataException if configured to fail fast
+    public synchronized void beforeRequest()
+    {
+        while (true) {
+            if (state == State.CLOSED) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (state == State.OPEN && now >= openedAtMillis + openMillis) {
+                state = State.HALF_OPEN;
+                probeInFlight = false;
+                log.info("Circuit breaker is half-open. Sending a probe request");
+            }
+            if (state == State.HALF_OPEN && !probeInFlight) {
+                probeInFlight = true;
+                return;
+            }
+            if (failFast) {
+                throw new DataException("Circuit breaker is open because Elasticsearch keeps failing. Gave up sending bulk request");
+            }
+            long waitMillis = state == State.OPEN ? openedAtMillis + openMillis - now : openMillis;
+            try {
+                wait(Math.max(1, waitMillis));
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    public synchronized void onSuccess()
+    {
+        if (state != State.CLOSED) {
+            log.info("Circuit breaker is closed. Elasticsearch has recovered");
+            notifyAll();
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        probeInFlight = false;
+    }
+
+    public synchronized void onFailure()
+    {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            if (state == State.CLOSED) {
+                log.warn("Circuit breaker is open after {} consecutive failures. Stop sending bulk requests for {} ms", consecutiveFailures, openMillis);
+            }
+            state = State.OPEN;
+            openedAtMillis = System.currentTimeMillis();
+            probeInFlight = false;
+            notifyAll();
+        }
+    }
+
+    // Called when a request gave up for a reason which is not counted as a failure, so that the next probe can be sent
+    public synchronized void onAborted()
+    {
+        if (state == State.HALF_OPEN && probeInFlight) {
+            probeInFlight = false;
+            notifyAll();
+        }
+    }
+
+    public synchronized boolean isOpen()
+    {
+        return state == State.OPEN;
+    }
+
+    public synchronized State getState()
+    {
+        return state;
+    }
+}
@@ -0,0 +1,106 @@
+package org.embulk.output.elasticsearch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ElasticsearchClusterPressureMonitor polls node stats in background and asks {@code ElasticsearchBulkScheduler}
+ * to slow down bulk requests before the cluster starts rejecting them.
+ */
+public class ElasticsearchClusterPressureMonitor
+        implements Runnable
+{
+    private final Logger log;
+    private final PluginTask task;
+    private final ElasticsearchHttpClient client;
+    private final ElasticsearchBulkScheduler scheduler;
+    private final long initialDelayMillis;
+    private final long maximumDelayMillis;
+    private final ScheduledExecutorService executor;
+    private long lastRejected;
+    private long delayMillis;
+
+    public ElasticsearchClusterPressureMonitor(PluginTask task, ElasticsearchBulkScheduler scheduler)
+    {
+        this.log = Exec.getLogger(getClass());
+        this.task = task;
+        // Own client keeps its request template apart from tasks. Requests go through the shared transport of the scheduler.
+        this.client = new ElasticsearchHttpClient();
+        this.scheduler = scheduler;
+        this.initialDelayMillis = task.getInitialRetryIntervalMillis();
+        this.maximumDelayMillis = task.getMaximumRetryIntervalMillis();
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "embulk-output-elasticsearch-pressure-monitor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.lastRejected = -1;
+        this.delayMillis = 0;
+    }
+
+    public void start()
+    {
+        long interval = task.getClusterPressurePollIntervalMillis();
+        executor.scheduleWithFixedDelay(this, 0, interval, TimeUnit.MILLISECONDS);
+        log.info("Started cluster pressure monitor. Polling node stats every {} ms", interval);
+    }
+
+    public void stop()
+    {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void run()
+    {
+        try {
+            update(client.getNodesStats(scheduler.getTransport(), task));
+        }
+        catch (Exception ex) {
+            // Monitoring is best effort. The sample is skipped and bulk requests are still protected by retries.
+            log.warn("Failed to get node stats. Skipped this sample: {}", ex.getMessage());
+        }
+    }
+
+    private void update(JsonNode response)
+    {
+        long rejected = 0;
+        long maxQueue = 0;
+        long maxHeapUsedPercent = 0;
+        for (JsonNode node : response.path("nodes")) {
+            JsonNode threadPool = node.path("thread_pool");
+            // Write thread pool is named "bulk" before Elasticsearch 6.3
+            JsonNode writePool = threadPool.has("write") ? threadPool.get("write") : threadPool.path("bulk");
+            rejected += writePool.path("rejected").asLong();
+            maxQueue = Math.max(maxQueue, writePool.path("queue").asLong());
+            maxHeapUsedPercent = Math.max(maxHeapUsedPercent, node.path("jvm").path("mem").path("heap_used_percent").asLong());
+        }
+
+        boolean newRejections = lastRejected >= 0 && rejected > lastRejected;
+        lastRejected = rejected;
+
+        int queueThreshold = task.getClusterPressureQueueThreshold();
+        int heapThreshold = task.getClusterPressureHeapThresholdPercent();
+        if (newRejections || maxQueue >= queueThreshold || maxHeapUsedPercent >= heapThreshold) {
+            delayMillis = delayMillis == 0 ? initialDelayMillis : Math.min(delayMillis * 2, maximumDelayMillis);
+            log.info("Cluster is under pressure (write queue:{}, heap used:{}%, new rejections:{}). Throttling bulk requests by {} ms",
+                    maxQueue, maxHeapUsedPercent, newRejections, delayMillis);
+        }
+        else if (delayMillis > 0 && maxQueue < queueThreshold / 2) {
+            delayMillis = 0;
+            log.info("Cluster pressure was relieved. Resuming bulk requests");
+        }
+        scheduler.setPressureDelayMillis(delayMillis);
+    }
+}
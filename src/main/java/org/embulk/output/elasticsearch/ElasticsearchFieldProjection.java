@@ -0,0 +1,139 @@
+package org.embulk.output.elasticsearch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.embulk.config.ConfigException;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.embulk.spi.Column;
+import org.embulk.spi.Schema;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * ElasticsearchFieldProjection decides which columns go into documents and under which field names.
+ *
+ * It is resolved once against the {@code Schema} from include_columns, exclude_columns, rename_columns and constant_fields.
+ */
+public class ElasticsearchFieldProjection
+{
+    private final List<Column> columns;
+    private final List<String> fieldNames;
+    private final Map<String, JsonNode> constantFields;
+
+    private ElasticsearchFieldProjection(List<Column> columns, List<String> fieldNames, Map<String, JsonNode> constantFields)
+    {
+        this.columns = columns;
+        this.fieldNames = fieldNames;
+        this.constantFields = constantFields;
+    }
+
+    public static boolean isEnabled(PluginTask task)
+    {
+        return task.getIncludeColumns().isPresent() || task.getExcludeColumns().isPresent()
+                || !task.getRenameColumns().isEmpty() || !task.getConstantFields().isEmpty();
+    }
+
+    // Throws ConfigException when the options refer to unknown columns or drop columns required by other options
+    public static ElasticsearchFieldProjection of(PluginTask task, Schema schema)
+    {
+        Set<String> columnNames = new HashSet<>();
+        for (Column column : schema.getColumns()) {
+            columnNames.add(column.getName());
+        }
+        Set<String> included = task.getIncludeColumns().isPresent() ? new HashSet<>(task.getIncludeColumns().get()) : columnNames;
+        Set<String> excluded = task.getExcludeColumns().isPresent() ? new HashSet<>(task.getExcludeColumns().get()) : new HashSet<String>();
+        Map<String, String> renames = task.getRenameColumns();
+        checkColumnsExist("include_columns", included, columnNames);
+        checkColumnsExist("exclude_columns", excluded, columnNames);
+        checkColumnsExist("rename_columns", renames.keySet(), columnNames);
+
+        // id, index_fields, json_array_fields, pipeline_column and nested_fields refer to record fields by column name
+        for (String required : collectReferencedColumns(task)) {
+            if (!included.contains(required) || excluded.contains(required)) {
+                throw new ConfigException(String.format("Column '%s' is used by other options and can't be excluded", required));
+            }
+            if (renames.containsKey(required)) {
+                throw new ConfigException(String.format("Column '%s' is used by other options and can't be renamed", required));
+            }
+        }
+
+        List<Column> columns = new ArrayList<>();
+        List<String> fieldNames = new ArrayList<>();
+        Set<String> uniqueFieldNames = new HashSet<>();
+        for (Column column : schema.getColumns()) {
+            String name = column.getName();
+            if (!included.contains(name) || excluded.contains(name)) {
+                continue;
+            }
+            String fieldName = renames.containsKey(name) ? renames.get(name) : name;
+            if (!uniqueFieldNames.add(fieldName)) {
+                throw new ConfigException(String.format("Field '%s' appears more than once in documents", fieldName));
+            }
+            columns.add(column);
+            fieldNames.add(fieldName);
+        }
+        for (String constantField : task.getConstantFields().keySet()) {
+            if (uniqueFieldNames.contains(constantField)) {
+                throw new ConfigException(String.format("Constant field '%s' conflicts with a column", constantField));
+            }
+        }
+        return new ElasticsearchFieldProjection(columns, fieldNames, new LinkedHashMap<>(task.getConstantFields()));
+    }
+
+    public List<Column> getColumns()
+    {
+        return columns;
+    }
+
+    // Field name of the i-th column of getColumns()
+    public String getFieldName(int i)
+    {
+        return fieldNames.get(i);
+    }
+
+    public void putConstantFields(ObjectNode object)
+    {
+        for (Map.Entry<String, JsonNode> constantField : constantFields.entrySet()) {
+            object.set(constantField.getKey(), constantField.getValue().deepCopy());
+        }
+    }
+
+    private static void checkColumnsExist(String option, Set<String> names, Set<String> columnNames)
+    {
+        for (String name : names) {
+            if (!columnNames.contains(name)) {
+                throw new ConfigException(String.format("Column '%s' in %s doesn't exist in the schema", name, option));
+            }
+        }
+    }
+
+    private static Set<String> collectReferencedColumns(PluginTask task)
+    {
+        Set<String> referenced = new HashSet<>();
+        if (task.getId().isPresent()) {
+            referenced.add(task.getId().get());
+        }
+        if (task.getIndexFields().isPresent()) {
+            referenced.addAll(task.getIndexFields().get());
+        }
+        if (task.getJsonArrayFields().isPresent()) {
+            referenced.addAll(task.getJsonArrayFields().get());
+        }
+        if (task.getPipelineColumn().isPresent()) {
+            referenced.add(task.getPipelineColumn().get());
+        }
+        if (task.getNestedFields().isPresent()) {
+            for (Map.Entry<String, List<String>> nested : task.getNestedFields().get().entrySet()) {
+                for (String value : nested.getValue()) {
+                    referenced.add(nested.getKey() + "." + value);
+                }
+            }
+        }
+        return referenced;
+    }
+}
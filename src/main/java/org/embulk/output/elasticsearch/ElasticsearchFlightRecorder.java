@@ -0,0 +1,161 @@
+package org.embulk.output.elasticsearch;
+
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ElasticsearchFlightRecorder emits Java Flight Recorder events of the bulk pipeline when jfr_events is true.
+ *
+ * Events are defined with {@code jdk.jfr.EventFactory} through reflection because this plugin is built for Java 7.
+ * On JVMs without the JFR API, events are no-op.
+ */
+public class ElasticsearchFlightRecorder
+{
+    public enum EventType
+    {
+        BATCH_ENCODED("BatchEncoded", "Batch Encoded",
+                new String[] {"documents", "bytes"}, new Class<?>[] {int.class, long.class}),
+        BULK_SENT("BulkSent", "Bulk Sent",
+                new String[] {"documents", "bytes", "tookMillis"}, new Class<?>[] {int.class, long.class, long.class}),
+        BULK_REJECTED("BulkRejected", "Bulk Rejected",
+                new String[] {"documents", "rejectedItems"}, new Class<?>[] {int.class, int.class}),
+        RETRY_SCHEDULED("RetryScheduled", "Retry Scheduled",
+                new String[] {"failureType", "intervalMillis"}, new Class<?>[] {String.class, long.class}),
+        ALIAS_SWAPPED("AliasSwapped", "Alias Swapped",
+                new String[] {"alias", "index"}, new Class<?>[] {String.class, String.class});
+
+        private final String name;
+        private final String label;
+        private final String[] fieldNames;
+        private final Class<?>[] fieldTypes;
+        private Object factory;
+
+        EventType(String name, String label, String[] fieldNames, Class<?>[] fieldTypes)
+        {
+            this.name = name;
+            this.label = label;
+            this.fieldNames = fieldNames;
+            this.fieldTypes = fieldTypes;
+        }
+    }
+
+    private static final Event NOOP = new Event(null);
+    private static final Method newEvent;
+    private static final Method begin;
+    private static final Method end;
+    private static final Method commit;
+    private static final Method set;
+    private static final Method shouldCommit;
+
+    static {
+        Method[] methods = new Method[6];
+        try {
+            Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory");
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+            Constructor<?> annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+            Constructor<?> valueDescriptor = valueDescriptorClass.getConstructor(Class.class, String.class);
+            Method create = eventFactoryClass.getMethod("create", List.class, List.class);
+            for (EventType type : EventType.values()) {
+                List<Object> annotations = new ArrayList<>();
+                annotations.add(annotationElement.newInstance(annotationClass("jdk.jfr.Name"), "org.embulk.output.elasticsearch." + type.name));
+                annotations.add(annotationElement.newInstance(annotationClass("jdk.jfr.Label"), type.label));
+                annotations.add(annotationElement.newInstance(annotationClass("jdk.jfr.Category"), new String[] {"Embulk", "Elasticsearch"}));
+                List<Object> fields = new ArrayList<>();
+                for (int i = 0; i < type.fieldNames.length; i++) {
+                    fields.add(valueDescriptor.newInstance(type.fieldTypes[i], type.fieldNames[i]));
+                }
+                type.factory = create.invoke(null, annotations, fields);
+            }
+            methods[0] = eventFactoryClass.getMethod("newEvent");
+            methods[1] = eventClass.getMethod("begin");
+            methods[2] = eventClass.getMethod("end");
+            methods[3] = eventClass.getMethod("commit");
+            methods[4] = eventClass.getMethod("set", int.class, Object.class);
+            methods[5] = eventClass.getMethod("shouldCommit");
+        }
+        catch (Exception | LinkageError ex) {
+            // Java Flight Recorder API is not available. Events are not emitted.
+            methods = new Method[6];
+        }
+        newEvent = methods[0];
+        begin = methods[1];
+        end = methods[2];
+        commit = methods[3];
+        set = methods[4];
+        shouldCommit = methods[5];
+    }
+
+    private ElasticsearchFlightRecorder()
+    {
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Class<? extends Annotation> annotationClass(String name) throws ClassNotFoundException
+    {
+        return (Class<? extends Annotation>) Class.forName(name);
+    }
+
+    // Starts an event. Returned event does nothing when jfr_events is false or JFR is not available.
+    public static Event begin(PluginTask task, EventType type)
+    {
+        if (newEvent == null || !task.getJfrEvents()) {
+            return NOOP;
+        }
+        try {
+            Object event = newEvent.invoke(type.factory);
+            begin.invoke(event);
+            return new Event(event);
+        }
+        catch (ReflectiveOperationException ex) {
+            return NOOP;
+        }
+    }
+
+    /**
+     * Event is a started JFR event. Fields are set by the index of the field names of the event type.
+     */
+    public static class Event
+    {
+        private final Object event;
+
+        private Event(Object event)
+        {
+            this.event = event;
+        }
+
+        public Event set(int index, Object value)
+        {
+            if (event != null) {
+                try {
+                    set.invoke(event, index, value);
+                }
+                catch (ReflectiveOperationException ex) {
+                    // ignore. Events are only for profiling
+                }
+            }
+            return this;
+        }
+
+        public void commit()
+        {
+            if (event != null) {
+                try {
+                    end.invoke(event);
+                    if ((Boolean) shouldCommit.invoke(event)) {
+                        commit.invoke(event);
+                    }
+                }
+                catch (ReflectiveOperationException ex) {
+                    // ignore. Events are only for profiling
+                }
+            }
+        }
+    }
+}
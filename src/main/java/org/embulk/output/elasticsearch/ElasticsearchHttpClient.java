@@ -1,31 +1,32 @@
 package org.embulk.output.elasticsearch;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.RawValue;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
-import org.eclipse.jetty.client.util.StringContentProvider;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 import org.eclipse.jetty.http.HttpMethod;
-import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.embulk.config.ConfigException;
 import org.embulk.config.UserDataException;
-import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.AuthMethod;
-import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.NodeAddressTask;
+import org.embulk.output.elasticsearch.ElasticsearchFlightRecorder.EventType;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.ContentType;
 import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
 import org.embulk.spi.DataException;
 import org.embulk.spi.Exec;
 import org.embulk.spi.time.Timestamp;
-import org.embulk.util.retryhelper.jetty92.Jetty92ClientCreator;
-import org.embulk.util.retryhelper.jetty92.Jetty92RetryHelper;
-import org.embulk.util.retryhelper.jetty92.Jetty92SingleRequester;
-import org.embulk.util.retryhelper.jetty92.StringJetty92ResponseEntityReader;
 import org.slf4j.Logger;
 
-import javax.xml.bind.DatatypeConverter;
-
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -34,8 +35,11 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
 
 public class ElasticsearchHttpClient
 {
@@ -52,6 +56,12 @@ public class ElasticsearchHttpClient
     // @see https://github.com/elastic/elasticsearch/blob/master/core/src/main/java/org/elasticsearch/cluster/metadata/MetaDataCreateIndexService.java#L108
     private final long maxIndexNameBytes = 255;
     private final List<Character> inalidIndexCharaters = Arrays.asList('\\', '/', '*', '?', '"', '<', '>', '|', '#', ' ', ',');
+    private final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+    private static final int SMILE_SEPARATOR = 0xFF;
+    private final HashFunction contentHashFunction = Hashing.murmur3_128();
+    private ElasticsearchRequestTemplate template;
+    private ElasticsearchRetryPolicy retryPolicy;
+    private ElasticsearchBulkTracer bulkTracer;
 
     public ElasticsearchHttpClient()
     {
@@ -60,8 +70,52 @@ public class ElasticsearchHttpClient
 
     public void push(JsonNode records, PluginTask task)
     {
-        int bulkActions = task.getBulkActions();
-        long bulkSize = task.getBulkSize();
+        push(records, task, null);
+    }
+
+    public void push(JsonNode records, PluginTask task, ElasticsearchBulkScheduler scheduler)
+    {
+        push(records, task, scheduler, null);
+    }
+
+    // Sends records through the JVM-wide scheduler when given, otherwise with a dedicated HTTP client.
+    // Bulk request bodies are also written to bulk files when the writer is given.
+    public void push(JsonNode records, PluginTask task, ElasticsearchBulkScheduler scheduler, ElasticsearchBulkFileWriter bulkFileWriter)
+    {
+        if (records.size() > 0) {
+            send(encode(records, task, scheduler), task, scheduler, bulkFileWriter);
+        }
+    }
+
+    // Starts encoding records into actions. Records are encoded on the shared encoder pool of the scheduler when it has one,
+    // and the calling thread can send the previous bulk request meanwhile. Otherwise they are encoded by the calling thread.
+    public EncodedBulk encode(JsonNode records, PluginTask task, ElasticsearchBulkScheduler scheduler)
+    {
+        return encode(records, task, scheduler == null ? null : scheduler.getEncoderPool());
+    }
+
+    EncodedBulk encode(JsonNode records, PluginTask task, ForkJoinPool encoderPool)
+    {
+        final EncodedBulk bulk = new EncodedBulk(task, records);
+        if (encoderPool == null) {
+            bulk.encode(false);
+        }
+        else {
+            bulk.future = encoderPool.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    bulk.encode(true);
+                }
+            });
+        }
+        return bulk;
+    }
+
+    // Waits until the records are encoded and sends them. Bulk request bodies are also written to bulk files when the writer is given.
+    public void send(EncodedBulk bulk, PluginTask task, ElasticsearchBulkScheduler scheduler, ElasticsearchBulkFileWriter bulkFileWriter)
+    {
         // curl -xPOST localhost:9200/{index}/{type}/_bulk -d '
         // {"index" : {}}\n
         // {"k" : "v"}\n
@@ -69,26 +123,493 @@ public class ElasticsearchHttpClient
         // {"k" : "v2"}\n
         // '
         try {
-            String path = String.format("/%s/%s/_bulk", task.getIndex(), task.getType());
-            int recordSize = records.size();
-            if (recordSize > 0) {
-                StringBuilder sb = new StringBuilder();
-                for (JsonNode record : records) {
-                    sb.append(createIndexRequest(task, record));
-
-                    String requestString = createRequest(task, record);
-                    sb.append("\n")
-                        .append(requestString)
-                        .append("\n");
+            String path = getRequestTemplate(task).getBulkPath();
+            List<byte[]> actions = bulk.getActions();
+            ElasticsearchBulkTracer tracer = getBulkTracer(task);
+            ElasticsearchBulkTrace trace = tracer == null ? null : tracer.newTrace(actions.size());
+            if (trace != null) {
+                trace.addEncodeMillis(bulk.encodeMillis);
+            }
+            if (task.getSkipUnchanged()) {
+                actions = removeUnchangedActions(task, actions, bulk.getDocumentKeys(), bulk.getContentHashes(), scheduler);
+                if (actions.isEmpty()) {
+                    return;
                 }
-                sendRequest(path, HttpMethod.POST, task, sb.toString());
             }
+            if (bulkFileWriter != null) {
+                bulkFileWriter.write(concat(actions));
+                if (!task.getBulkFileSend()) {
+                    return;
+                }
+            }
+            sendBulkRequest(path, task, actions, scheduler, trace);
+            if (tracer != null) {
+                tracer.record(trace);
+            }
+            onBulkSent(scheduler);
         }
         catch (IOException ex) {
             throw new DataException(ex);
         }
     }
 
+    /**
+     * EncodedBulk is a bulk request whose records are being encoded into actions, possibly on the shared encoder pool.
+     * Records must not be modified until the actions are taken with getActions().
+     */
+    class EncodedBulk
+    {
+        private final PluginTask task;
+        private final JsonNode records;
+        private final byte[][] actions;
+        private final DocumentKey[] documentKeys;
+        private final String[] contentHashes;
+        private ForkJoinTask<?> future;
+        private long encodeMillis;
+
+        EncodedBulk(PluginTask task, JsonNode records)
+        {
+            this.task = task;
+            this.records = records;
+            this.actions = new byte[records.size()][];
+            this.documentKeys = task.getSkipUnchanged() ? new DocumentKey[records.size()] : null;
+            this.contentHashes = task.getSkipUnchanged() ? new String[records.size()] : null;
+        }
+
+        private void encode(boolean parallel)
+        {
+            long encodeStartedNanos = System.nanoTime();
+            ElasticsearchFlightRecorder.Event encodedEvent = ElasticsearchFlightRecorder.begin(task, EventType.BATCH_ENCODED);
+            EncodeAction encodeAction = new EncodeAction(task, records, 0, actions.length, actions, documentKeys, contentHashes);
+            if (parallel) {
+                encodeAction.invoke();
+            }
+            else {
+                encodeAction.encode(0, actions.length);
+            }
+            encodedEvent.set(0, actions.length).set(1, totalBytes(Arrays.asList(actions))).commit();
+            encodeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - encodeStartedNanos);
+        }
+
+        // Blocks until the records are encoded. Exceptions thrown by encoding are rethrown.
+        List<byte[]> getActions()
+        {
+            if (future != null) {
+                future.join();
+            }
+            return Arrays.asList(actions);
+        }
+
+        // Filled per action for skip_unchanged after getActions(). Null when skip_unchanged is false.
+        DocumentKey[] getDocumentKeys()
+        {
+            return documentKeys;
+        }
+
+        String[] getContentHashes()
+        {
+            return contentHashes;
+        }
+    }
+
+    // Sends encoded actions read from bulk files
+    public void pushActions(List<byte[]> actions, PluginTask task, ElasticsearchBulkScheduler scheduler)
+    {
+        ElasticsearchBulkTracer tracer = getBulkTracer(task);
+        ElasticsearchBulkTrace trace = tracer == null ? null : tracer.newTrace(actions.size());
+        sendBulkRequest(getRequestTemplate(task).getBulkPath(), task, actions, scheduler, trace);
+        if (tracer != null) {
+            tracer.record(trace);
+        }
+        onBulkSent(scheduler);
+    }
+
+    private void onBulkSent(ElasticsearchBulkScheduler scheduler)
+    {
+        if (scheduler != null && scheduler.getRolloverManager() != null) {
+            scheduler.getRolloverManager().onBulkSent();
+        }
+    }
+
+    // Returns null when bulk_trace_size is 0
+    synchronized ElasticsearchBulkTracer getBulkTracer(PluginTask task)
+    {
+        if (bulkTracer == null && task.getBulkTraceSize() > 0) {
+            bulkTracer = new ElasticsearchBulkTracer(task);
+        }
+        return bulkTracer;
+    }
+
+    public synchronized void logBulkTraces()
+    {
+        if (bulkTracer != null) {
+            bulkTracer.logSummary();
+        }
+    }
+
+    // Returns null when the record has no _id and Elasticsearch generates it
+    DocumentKey getDocumentKey(PluginTask task, JsonNode record)
+    {
+        return DocumentKey.of(task, getMetadata(task, createIndexRequestMap(task, record)));
+    }
+
+    /**
+     * DocumentKey is the index, type and id an action writes to. It is read from the action metadata
+     * before the record is turned into the document, because index_fields are removed from the document.
+     */
+    static class DocumentKey
+    {
+        private final String index;
+        private final String type;
+        private final String id;
+
+        DocumentKey(String index, String type, String id)
+        {
+            this.index = index;
+            this.type = type;
+            this.id = id;
+        }
+
+        // Returns null when the action has no _id and Elasticsearch generates it
+        static DocumentKey of(PluginTask task, Map<String, JsonNode> metadata)
+        {
+            JsonNode id = metadata.get("_id");
+            if (id == null || id.isNull()) {
+                return null;
+            }
+            JsonNode index = metadata.get("_index");
+            JsonNode type = metadata.get("_type");
+            return new DocumentKey(index == null || index.isNull() ? task.getIndex() : index.asText(),
+                    type == null || type.isNull() ? task.getType() : type.asText(),
+                    id.asText());
+        }
+
+        String getIndex()
+        {
+            return index;
+        }
+
+        String getType()
+        {
+            return type;
+        }
+
+        String getId()
+        {
+            return id;
+        }
+    }
+
+    // Encoder threads only encode records into actions. Results are stored by position, so the order of actions is kept.
+    private class EncodeAction
+            extends RecursiveAction
+    {
+        private static final int RECORDS_PER_ACTION = 64;
+
+        private final PluginTask task;
+        private final JsonNode records;
+        private final int from;
+        private final int to;
+        private final byte[][] actions;
+        private final DocumentKey[] documentKeys;
+        private final String[] contentHashes;
+
+        EncodeAction(PluginTask task, JsonNode records, int from, int to, byte[][] actions, DocumentKey[] documentKeys, String[] contentHashes)
+        {
+            this.task = task;
+            this.records = records;
+            this.from = from;
+            this.to = to;
+            this.actions = actions;
+            this.documentKeys = documentKeys;
+            this.contentHashes = contentHashes;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= RECORDS_PER_ACTION) {
+                encode(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new EncodeAction(task, records, from, middle, actions, documentKeys, contentHashes),
+                    new EncodeAction(task, records, middle, to, actions, documentKeys, contentHashes));
+        }
+
+        void encode(int from, int to)
+        {
+            try {
+                for (int i = from; i < to; i++) {
+                    JsonNode record = records.get(i);
+                    // Metadata is built before createSource() removes index_fields from the record
+                    Map<String, Map> indexRequest = createIndexRequestMap(task, record);
+                    if (documentKeys != null) {
+                        documentKeys[i] = DocumentKey.of(task, getMetadata(task, indexRequest));
+                    }
+                    if (task.getContentType() == ContentType.SMILE) {
+                        // Smile documents in bulk body are separated by 0xFF instead of new line
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        out.write(smileMapper.writeValueAsBytes(indexRequest));
+                        out.write(SMILE_SEPARATOR);
+                        out.write(smileMapper.writeValueAsBytes(createSource(task, record)));
+                        out.write(SMILE_SEPARATOR);
+                        actions[i] = out.toByteArray();
+                    }
+                    else {
+                        StringBuilder sb = new StringBuilder();
+                        sb.append(createIndexRequest(task, indexRequest));
+
+                        String requestString = createRequest(task, record);
+                        sb.append("\n")
+                            .append(requestString)
+                            .append("\n");
+                        actions[i] = sb.toString().getBytes(StandardCharsets.UTF_8);
+                    }
+                    if (contentHashes != null) {
+                        contentHashes[i] = record.get(task.getContentHashField()).textValue();
+                    }
+                }
+            }
+            catch (IOException ex) {
+                throw new DataException(ex);
+            }
+        }
+    }
+
+    // Items rejected in the bulk response are retried by themselves. Other failed items are skipped with a warning.
+    private void sendBulkRequest(String path, PluginTask task, List<byte[]> actions, ElasticsearchBulkScheduler scheduler, ElasticsearchBulkTrace trace)
+    {
+        ElasticsearchRetryPolicy retryPolicy = getRetryPolicy(task);
+        ElasticsearchRetryPolicy.RetryState retryState = retryPolicy.newRetryState();
+        List<byte[]> pending = actions;
+        List<byte[]> failedActions = new ArrayList<>();
+        if (trace != null) {
+            // Size of the original body. Retries of rejected items send only part of it.
+            trace.setBytes(totalBytes(actions));
+        }
+        while (true) {
+            byte[] content = concat(pending);
+            ElasticsearchFlightRecorder.Event sentEvent = ElasticsearchFlightRecorder.begin(task, EventType.BULK_SENT);
+            JsonNode response = sendBulkRequest(path, task, content, pending.size(), scheduler, trace);
+            sentEvent.set(0, pending.size()).set(1, (long) content.length).set(2, response.path("took").asLong()).commit();
+            if (trace != null) {
+                trace.addTookMillis(response.path("took").asLong());
+            }
+            List<byte[]> rejected = collectRejectedItems(response, pending, failedActions);
+            if (rejected.isEmpty()) {
+                // Counted once per bulk request, so that items sent again after rejection are not counted twice
+                if (scheduler != null) {
+                    scheduler.getMetrics().onDocumentsSent(actions.size() - failedActions.size(), totalBytes(actions) - totalBytes(failedActions));
+                }
+                return;
+            }
+            ElasticsearchFlightRecorder.begin(task, EventType.BULK_REJECTED).set(0, pending.size()).set(1, rejected.size()).commit();
+
+            long interval = retryPolicy.nextRetryIntervalMillis(retryState, ElasticsearchRetryPolicy.FailureType.REJECTED, -1);
+            if (interval < 0) {
+                throw new DataException(String.format("Gave up retrying %d items rejected by Elasticsearch", rejected.size()));
+            }
+            if (scheduler != null) {
+                scheduler.onRejected();
+                scheduler.getMetrics().onRetry();
+            }
+            if (trace != null) {
+                trace.addRetry();
+            }
+            ElasticsearchFlightRecorder.begin(task, EventType.RETRY_SCHEDULED)
+                    .set(0, ElasticsearchRetryPolicy.FailureType.REJECTED.toString()).set(1, interval).commit();
+            log.warn("{} items were rejected by Elasticsearch. Retrying them in {} ms", rejected.size(), interval);
+            sleep(interval);
+            pending = rejected;
+        }
+    }
+
+    private static long totalBytes(List<byte[]> actions)
+    {
+        long length = 0;
+        for (byte[] action : actions) {
+            length += action.length;
+        }
+        return length;
+    }
+
+    private static byte[] concat(List<byte[]> actions)
+    {
+        byte[] content = new byte[(int) totalBytes(actions)];
+        int offset = 0;
+        for (byte[] action : actions) {
+            System.arraycopy(action, 0, content, offset, action.length);
+            offset += action.length;
+        }
+        return content;
+    }
+
+    private JsonNode sendBulkRequest(String path, PluginTask task, byte[] content, int recordSize, ElasticsearchBulkScheduler scheduler,
+                                     ElasticsearchBulkTrace trace)
+    {
+        String contentType = task.getContentType().getMediaType();
+        if (scheduler == null) {
+            long httpStartedNanos = System.nanoTime();
+            try (ElasticsearchTransport transport = createTransport(task)) {
+                return sendRequest(transport, null, path, HttpMethod.POST, task, content, contentType, trace);
+            }
+            finally {
+                if (trace != null) {
+                    trace.addHttpMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - httpStartedNanos));
+                }
+            }
+        }
+
+        ElasticsearchCircuitBreaker circuitBreaker = scheduler.getCircuitBreaker();
+        ElasticsearchMetrics metrics = scheduler.getMetrics();
+        long contentBytes = content.length;
+        int parkedCount = 0;
+        while (true) {
+            long queueStartedNanos = System.nanoTime();
+            if (circuitBreaker != null) {
+                circuitBreaker.beforeRequest();
+            }
+            scheduler.acquirePermit(recordSize, contentBytes);
+            long httpStartedNanos = System.nanoTime();
+            if (trace != null) {
+                trace.addQueueWaitMillis(TimeUnit.NANOSECONDS.toMillis(httpStartedNanos - queueStartedNanos));
+            }
+            metrics.onBulkStarted();
+            boolean succeeded = false;
+            boolean parked = false;
+            try {
+                JsonNode response = sendRequest(scheduler.getTransport(), scheduler, path, HttpMethod.POST, task, content, contentType, trace);
+                succeeded = true;
+                scheduler.onSucceeded();
+                if (circuitBreaker != null) {
+                    circuitBreaker.onSuccess();
+                }
+                return response;
+            }
+            catch (RuntimeException ex) {
+                if (circuitBreaker == null) {
+                    throw ex;
+                }
+                // Park the whole batch until the circuit half-opens. Resending is safe only when documents have ids.
+                if (circuitBreaker.isOpen() && !circuitBreaker.isFailFast() && task.getId().isPresent() && parkedCount < task.getMaximumRetries()) {
+                    parkedCount++;
+                    parked = true;
+                    log.warn("Parked bulk request of {} records until Elasticsearch recovers", recordSize);
+                    continue;
+                }
+                circuitBreaker.onAborted();
+                throw ex;
+            }
+            finally {
+                scheduler.releasePermit();
+                long httpMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - httpStartedNanos);
+                if (parked) {
+                    metrics.onBulkParked();
+                }
+                else {
+                    metrics.onBulkFinished(succeeded, httpMillis);
+                }
+                if (trace != null) {
+                    trace.addHttpMillis(httpMillis);
+                }
+            }
+        }
+    }
+
+    // Looks up content hashes of existing documents with _mget and removes actions whose documents are unchanged.
+    // Documents without _id are always sent.
+    private List<byte[]> removeUnchangedActions(PluginTask task, List<byte[]> actions, DocumentKey[] documentKeys,
+                                               String[] contentHashes, ElasticsearchBulkScheduler scheduler) throws IOException
+    {
+        ArrayNode docs = jsonMapper.createArrayNode();
+        List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i < documentKeys.length; i++) {
+            DocumentKey key = documentKeys[i];
+            if (key == null) {
+                continue;
+            }
+            ObjectNode doc = docs.addObject();
+            doc.put("_index", key.getIndex());
+            doc.put("_type", key.getType());
+            doc.put("_id", key.getId());
+            positions.add(i);
+        }
+        if (positions.isEmpty()) {
+            return actions;
+        }
+
+        ObjectNode request = jsonMapper.createObjectNode();
+        request.set("docs", docs);
+        String path = "/_mget?_source=" + task.getContentHashField();
+        String content = jsonMapper.writeValueAsString(request);
+        JsonNode response;
+        if (scheduler == null) {
+            response = sendRequest(path, HttpMethod.POST, task, content);
+        }
+        else {
+            response = sendRequest(scheduler.getTransport(), scheduler, path, HttpMethod.POST, task, content);
+        }
+
+        // Docs in _mget response are in the same order as the request
+        boolean[] unchanged = new boolean[actions.size()];
+        int unchangedCount = 0;
+        JsonNode responseDocs = response.path("docs");
+        for (int i = 0; i < responseDocs.size() && i < positions.size(); i++) {
+            JsonNode existing = responseDocs.get(i).path("_source").path(task.getContentHashField());
+            int position = positions.get(i);
+            if (existing.isTextual() && existing.textValue().equals(contentHashes[position])) {
+                unchanged[position] = true;
+                unchangedCount++;
+            }
+        }
+        if (unchangedCount == 0) {
+            return actions;
+        }
+
+        List<byte[]> changed = new ArrayList<>(actions.size() - unchangedCount);
+        for (int i = 0; i < actions.size(); i++) {
+            if (!unchanged[i]) {
+                changed.add(actions.get(i));
+            }
+        }
+        log.debug("Skipped {} unchanged documents", unchangedCount);
+        return changed;
+    }
+
+    // Returns actions of items which failed with 429 or 5xx. Items in bulk response are in the same order as the request.
+    // Items failed for other reasons are added to failedActions
+    private <T> List<T> collectRejectedItems(JsonNode response, List<T> actions, List<T> failedActions)
+    {
+        List<T> rejected = new ArrayList<>();
+        if (!response.path("errors").asBoolean(false)) {
+            return rejected;
+        }
+
+        int failed = 0;
+        JsonNode firstError = null;
+        JsonNode items = response.path("items");
+        for (int i = 0; i < items.size() && i < actions.size(); i++) {
+            // {"index" : {"_id" : "1", "status" : 429, "error" : {...}}}
+            JsonNode item = items.get(i).elements().next();
+            int status = item.path("status").asInt();
+            if (status == 429 || status / 100 == 5) {
+                rejected.add(actions.get(i));
+            }
+            else if (item.has("error")) {
+                failed++;
+                failedActions.add(actions.get(i));
+                if (firstError == null) {
+                    firstError = item.get("error");
+                }
+            }
+        }
+        if (failed > 0) {
+            log.warn("{} items failed to be indexed and are skipped. First error: {}", failed, firstError);
+        }
+        return rejected;
+    }
+
     public List<String> getIndexByAlias(String aliasName, PluginTask task)
     {
         // curl -XGET localhost:9200/_alias/{alias}
@@ -146,17 +667,67 @@ public class ElasticsearchHttpClient
     // Should be called just once while Embulk transaction.
     // Be sure to call after all exporting tasks completed
     // This method will delete existing index
-    public void reassignAlias(String aliasName, String newIndexName, PluginTask task)
+    public void reassignAlias(String aliasName, String newIndexName, final PluginTask task)
     {
         if (!isAliasExisting(aliasName, task)) {
             assignAlias(newIndexName, aliasName, task);
         }
         else {
-            List<String> oldIndices = getIndexByAlias(aliasName, task);
+            final List<String> oldIndices = getIndexByAlias(aliasName, task);
             assignAlias(newIndexName, aliasName, task);
-            for (String index : oldIndices) {
-                deleteIndex(index, task);
+            if (!task.getDeleteOldIndexAsync()) {
+                for (String index : oldIndices) {
+                    deleteIndex(index, task);
+                }
+                return;
+            }
+            // Old indices are no longer referred by the alias. Waiting for snapshots of them doesn't need to delay the job.
+            Thread deleter = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    for (String index : oldIndices) {
+                        try {
+                            deleteIndex(index, task);
+                        }
+                        catch (RuntimeException ex) {
+                            log.warn(String.format("Failed to delete old index [%s]. Delete it manually", index), ex);
+                        }
+                    }
+                }
+            }, "embulk-output-elasticsearch-delete-old-index");
+            deleter.setDaemon(false);
+            deleter.start();
+            log.info("Deleting old indices {} in background", oldIndices);
+        }
+    }
+
+    // Creates the index with the mapping, or puts the mapping to the existing index. Types are omitted since 7.0.
+    public void putMapping(String indexName, PluginTask task, ObjectNode mapping, int esMajorVersion)
+    {
+        boolean typeless = esMajorVersion >= 7;
+        try {
+            if (isIndexExisting(indexName, task)) {
+                // curl -XPUT localhost:9200/{index}/_mapping/{type} -d '{"properties": {...}}'
+                String path = "/" + indexName + "/_mapping" + (typeless ? "" : "/" + task.getType());
+                sendRequest(path, HttpMethod.PUT, task, jsonMapper.writeValueAsString(mapping));
             }
+            else {
+                // curl -XPUT localhost:9200/{index} -d '{"mappings": {"{type}": {"properties": {...}}}}'
+                ObjectNode body = jsonMapper.createObjectNode();
+                ObjectNode mappings = body.putObject("mappings");
+                if (typeless) {
+                    mappings.setAll(mapping);
+                }
+                else {
+                    mappings.set(task.getType(), mapping);
+                }
+                sendRequest("/" + indexName, HttpMethod.PUT, task, jsonMapper.writeValueAsString(body));
+            }
+            log.info("Put mapping to index[{}]", indexName);
+        }
+        catch (JsonProcessingException ex) {
+            throw new ConfigException(ex);
         }
     }
 
@@ -167,6 +738,105 @@ public class ElasticsearchHttpClient
         return response.get("version").get("number").asText();
     }
 
+    // Sent once without retries on the given transport, because the caller polls periodically
+    public JsonNode getNodesStats(ElasticsearchTransport transport, PluginTask task)
+    {
+        // curl -XGET localhost:9200/_nodes/stats/thread_pool,jvm
+        return sendRequestOnce(transport, "/_nodes/stats/thread_pool,jvm", HttpMethod.GET, task);
+    }
+
+    public JsonNode getNodesInfo(PluginTask task)
+    {
+        // curl -XGET localhost:9200/_nodes/http,thread_pool
+        return sendRequest("/_nodes/http,thread_pool", HttpMethod.GET, task);
+    }
+
+    // Returns base URIs of nodes with the ingest role, or an empty list when they can't be discovered
+    private List<String> discoverIngestNodes(PluginTask task)
+    {
+        // curl -XGET localhost:9200/_nodes/ingest:true/http
+        // {"nodes":{"{node_id}":{"http":{"publish_address":"10.0.0.1:9200"}}}}
+        // publish_address is "{hostname}/{ip}:{port}" when network.publish_host is a hostname
+        String protocol = task.getUseSsl() ? "https://" : "http://";
+        List<String> baseUris = new ArrayList<>();
+        try {
+            JsonNode response = sendRequest("/_nodes/ingest:true/http", HttpMethod.GET, task);
+            for (JsonNode node : response.path("nodes")) {
+                String publishAddress = node.path("http").path("publish_address").asText("");
+                if (publishAddress.isEmpty()) {
+                    continue;
+                }
+                baseUris.add(protocol + publishAddress.substring(publishAddress.indexOf('/') + 1));
+            }
+        }
+        catch (RuntimeException ex) {
+            log.warn("Failed to discover ingest nodes. Bulk requests are sent to the configured nodes", ex);
+            return baseUris;
+        }
+        if (baseUris.isEmpty()) {
+            log.warn("No ingest node was found. Bulk requests are sent to the configured nodes");
+        }
+        else {
+            log.info("Sending bulk requests to ingest nodes {}", baseUris);
+        }
+        return baseUris;
+    }
+
+    // Rolls over the alias or data stream to a new index when one of the conditions is met
+    public JsonNode rollover(String target, PluginTask task, ObjectNode conditions)
+    {
+        // curl -XPOST localhost:9200/{alias}/_rollover -d '{"conditions" : {"max_docs" : 1000, "max_size" : "50gb"}}'
+        // {"old_index":"{index}-000001","new_index":"{index}-000002","rolled_over":true,...}
+        ObjectNode request = jsonMapper.createObjectNode();
+        request.set("conditions", conditions);
+        try {
+            return sendRequest("/" + target + "/_rollover", HttpMethod.POST, task, jsonMapper.writeValueAsString(request));
+        }
+        catch (JsonProcessingException ex) {
+            throw new DataException(ex);
+        }
+    }
+
+    public JsonNode getClusterHealth(PluginTask task)
+    {
+        // curl -XGET localhost:9200/_cluster/health
+        return sendRequest("/_cluster/health", HttpMethod.GET, task);
+    }
+
+    // Returns -1 when the index doesn't exist. For an alias, returns the number of the first index.
+    public int getNumberOfShards(String indexName, PluginTask task)
+    {
+        // curl -XGET localhost:9200/{index}/_settings
+        // {"{index}":{"settings":{"index":{"number_of_shards":"5",...}}}}
+        try {
+            JsonNode response = sendRequest(indexName + "/_settings", HttpMethod.GET, task);
+            for (JsonNode index : response) {
+                return index.path("settings").path("index").path("number_of_shards").asInt(-1);
+            }
+            return -1;
+        }
+        catch (ResourceNotFoundException ex) {
+            return -1;
+        }
+    }
+
+    // Sends a bulk request to a temporary index used by ElasticsearchCapacityCalibrator
+    public JsonNode sendProbeBulk(String indexName, PluginTask task, byte[] content)
+    {
+        String path = "/" + indexName + "/" + task.getType() + "/_bulk";
+        try (ElasticsearchTransport transport = createTransport(task)) {
+            return sendRequest(transport, null, path, HttpMethod.POST, task, content, "application/json", null);
+        }
+    }
+
+    public void deleteCalibrationIndex(String indexName, PluginTask task)
+    {
+        // The temporary index is not a target of snapshots users care about, so it is deleted without waiting
+        if (isIndexExisting(indexName, task)) {
+            sendRequest(indexName, HttpMethod.DELETE, task);
+        }
+    }
+
     public void validateIndexOrAliasName(String index, String type)
     {
         for (int i = 0; i < index.length(); i++) {
@@ -193,6 +863,11 @@ public class ElasticsearchHttpClient
     }
 
     private String createRequest(PluginTask task, JsonNode record) throws IOException
+    {
+        return jsonMapper.writeValueAsString(createSource(task, record));
+    }
+
+    private ObjectNode createSource(PluginTask task, JsonNode record) throws IOException
     {
         ObjectNode obj = (ObjectNode) record;
 
@@ -202,17 +877,32 @@ public class ElasticsearchHttpClient
                 obj.remove(indexField);
             }
         }
+        if (task.getPipelineColumn().isPresent()) {
+            obj.remove(task.getPipelineColumn().get());
+        }
 
 
-        // convert json_array_fields string to pojo
+        // copy json_array_fields string into the document as raw JSON
         if (task.getJsonArrayFields().orNull() != null) {
             for (String jsonArrayField : task.getJsonArrayFields().orNull()) {
-                String json = obj.get(jsonArrayField).textValue();
-
-                List arr = jsonMapper.readValue(json, List.class);
-
-                obj.putPOJO(jsonArrayField, arr);
-
+                JsonNode value = obj.get(jsonArrayField);
+                if (value == null || !value.isTextual()) {
+                    continue;
+                }
+                String json = value.textValue();
+                if (task.getValidateJsonArrayFields()) {
+                    validateJsonArray(jsonArrayField, json);
+                }
+                if (task.getContentType() == ContentType.SMILE) {
+                    obj.set(jsonArrayField, jsonMapper.readTree(json));  // Smile generator can't write raw JSON
+                }
+                else if (json.indexOf('\n') >= 0 || json.indexOf('\r') >= 0) {
+                    // Bulk bodies and bulk files are split into actions by new lines, so the array is written in compact form
+                    obj.set(jsonArrayField, jsonMapper.readTree(json));
+                }
+                else {
+                    obj.putRawValue(jsonArrayField, new RawValue(json));
+                }
             }
         }
 
@@ -231,12 +921,48 @@ public class ElasticsearchHttpClient
             }
         }
 
-        return jsonMapper.writeValueAsString(obj);
+        // hash of the document without the hash field itself, so that it is the same for the same content
+        if (task.getSkipUnchanged()) {
+            obj.remove(task.getContentHashField());
+            String contentHash = contentHashFunction.hashString(jsonMapper.writeValueAsString(obj), StandardCharsets.UTF_8).toString();
+            obj.put(task.getContentHashField(), contentHash);
+        }
+
+        return obj;
+    }
+
+    // Checks the syntax with a streaming parser pass without building objects
+    private void validateJsonArray(String field, String json) throws IOException
+    {
+        try (JsonParser parser = jsonMapper.getFactory().createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new DataException(String.format("Field '%s' is not a JSON array: %s", field, json));
+            }
+            parser.skipChildren();
+            if (parser.nextToken() != null) {
+                throw new DataException(String.format("Field '%s' has trailing characters after JSON array: %s", field, json));
+            }
+        }
+    }
+
+    private String createIndexRequest(PluginTask task, Map<String, Map> indexRequest) throws JsonProcessingException
+    {
+        String opType = task.getOpType().toString();
+        if (indexRequest.get(opType).isEmpty()) {
+            return "{\"" + opType + "\" : {}}";
+        }
+        return jsonMapper.writeValueAsString(indexRequest);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, JsonNode> getMetadata(PluginTask task, Map<String, Map> indexRequest)
+    {
+        return (Map<String, JsonNode>) indexRequest.get(task.getOpType().toString());
     }
 
-    private String createIndexRequest(PluginTask task, JsonNode record) throws JsonProcessingException
+    private Map<String, Map> createIndexRequestMap(PluginTask task, JsonNode record)
     {
-        // {"index" : {"_id" : "v"}}
+        // {"index" : {"_id" : "v"}} or {"create" : {"_id" : "v"}}
         Map<String, Map> indexRequest = new HashMap<>();
         Map<String, JsonNode> idRequest = new HashMap<>();
         String idColumn = task.getId().orNull();
@@ -256,14 +982,14 @@ public class ElasticsearchHttpClient
             }
         }
 
-        if (idRequest.size() == 0) {
-            return "{\"index\" : {}}";
-        }
-        else {
-            indexRequest.put("index", idRequest);
+        // pipeline of the action line overrides pipeline of the path. Null keeps the pipeline of the path.
+        String pipelineColumn = task.getPipelineColumn().orNull();
+        if (pipelineColumn != null && record.hasNonNull(pipelineColumn)) {
+            idRequest.put("pipeline", record.get(pipelineColumn));
         }
 
-        return jsonMapper.writeValueAsString(indexRequest);
+        indexRequest.put(task.getOpType().toString(), idRequest);
+        return indexRequest;
     }
 
     private void assignAlias(String indexName, String aliasName, PluginTask task)
@@ -301,7 +1027,9 @@ public class ElasticsearchHttpClient
                     rootTree.put("actions", actions);
 
                     String content = jsonMapper.writeValueAsString(rootTree);
+                    ElasticsearchFlightRecorder.Event swappedEvent = ElasticsearchFlightRecorder.begin(task, EventType.ALIAS_SWAPPED);
                     sendRequest("/_aliases", HttpMethod.POST, task, content);
+                    swappedEvent.set(0, aliasName).set(1, indexName).commit();
                     log.info("Reassigned alias [{}] to index[{}]", aliasName, indexName);
                 }
                 else {
@@ -323,44 +1051,45 @@ public class ElasticsearchHttpClient
         // curl -XDELETE localhost:9200/{index}
         // Success: {"acknowledged":true}
         if (isIndexExisting(indexName, task)) {
-            waitSnapshot(task);
+            waitSnapshot(indexName, task);
             sendRequest(indexName, HttpMethod.DELETE, task);
             log.info("Deleted Index [{}]", indexName);
         }
     }
 
-    private void waitSnapshot(PluginTask task)
+    private void waitSnapshot(String indexName, PluginTask task)
     {
-        int maxSnapshotWaitingMills = task.getMaxSnapshotWaitingSecs() * 1000;
-        long execCount = 1;
-        long totalWaitingTime = 0;
-        // Since only needs exponential backoff, don't need exception handling and others, I don't use Embulk RetryExecutor
-        while (isSnapshotProgressing(task)) {
-            long sleepTime = ((long) Math.pow(2, execCount) * 1000);
-            try {
-                Thread.sleep(sleepTime);
-            }
-            catch (InterruptedException ex) {
-                // do nothing
-            }
-            if (execCount > 1) {
-                log.info("Waiting for snapshot completed.");
+        long maxSnapshotWaitingMillis = task.getMaxSnapshotWaitingSecs() * 1000L;
+        long maxPollIntervalMillis = Math.max(1, task.getSnapshotPollIntervalMillis());
+        long pollIntervalMillis = Math.min(200, maxPollIntervalMillis);
+        long startedMillis = System.currentTimeMillis();
+        boolean logged = false;
+        // Short polling with a small cap, so that a snapshot finishing soon doesn't cost long sleeps
+        while (isSnapshotProgressing(indexName, task)) {
+            if (System.currentTimeMillis() - startedMillis > maxSnapshotWaitingMillis) {
+                throw new ConfigException(String.format("Waiting creating snapshot is expired. %s sec.", task.getMaxSnapshotWaitingSecs()));
             }
-            execCount++;
-            totalWaitingTime += sleepTime;
-            if (totalWaitingTime > maxSnapshotWaitingMills) {
-                throw new ConfigException(String.format("Waiting creating snapshot is expired. %s sec.", maxSnapshotWaitingMills));
+            if (!logged) {
+                log.info("Waiting for snapshot of index [{}] completed.", indexName);
+                logged = true;
             }
+            sleep(pollIntervalMillis);
+            pollIntervalMillis = Math.min(pollIntervalMillis * 2, maxPollIntervalMillis);
         }
     }
 
-    private boolean isSnapshotProgressing(PluginTask task)
+    private boolean isSnapshotProgressing(String indexName, PluginTask task)
     {
         // https://www.elastic.co/guide/en/elasticsearch/reference/current/modules-snapshots.html#_snapshot_status
         // curl -XGET localhost:9200/_snapshot/_status
+        // Lists only running snapshots. Each of them has "indices" object keyed by index name.
         JsonNode response = sendRequest("/_snapshot/_status", HttpMethod.GET, task);
-        String snapshots = response.get("snapshots").asText();
-        return !snapshots.equals("");
+        for (JsonNode snapshot : response.path("snapshots")) {
+            if (snapshot.path("indices").has(indexName)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private JsonNode sendRequest(String path, final HttpMethod method, PluginTask task)
@@ -370,71 +1099,134 @@ public class ElasticsearchHttpClient
 
     private JsonNode sendRequest(String path, final HttpMethod method, final PluginTask task, final String content)
     {
-        final String uri = createRequestUri(task, path);
-        final String authorizationHeader = getAuthorizationHeader(task);
-
-        try (Jetty92RetryHelper retryHelper = createRetryHelper(task)) {
-            String responseBody = retryHelper.requestWithRetry(
-                new StringJetty92ResponseEntityReader(task.getTimeoutMills()),
-                new Jetty92SingleRequester() {
-                    @Override
-                    public void requestOnce(org.eclipse.jetty.client.HttpClient client, org.eclipse.jetty.client.api.Response.Listener responseListener)
-                    {
-                        org.eclipse.jetty.client.api.Request request = client
-                            .newRequest(uri)
-                            .accept("application/json")
-                            .method(method);
-                        if (method == HttpMethod.POST) {
-                            request.content(new StringContentProvider(content), "application/json");
-                        }
+        try (ElasticsearchTransport transport = createTransport(task)) {
+            return sendRequest(transport, null, path, method, task, content);
+        }
+    }
 
-                        if (!authorizationHeader.isEmpty()) {
-                            request.header("Authorization", authorizationHeader);
-                        }
-                        request.send(responseListener);
-                    }
+    // Best effort request without the retry policy. Failures are thrown to the caller as they are.
+    private JsonNode sendRequestOnce(ElasticsearchTransport transport, String path, HttpMethod method, PluginTask task)
+    {
+        ElasticsearchRequestTemplate template = getRequestTemplate(task);
+        String responseBody = transport.send(method, template.createRequestUri(path), template.getAuthorizationHeader(), new byte[0], "application/json");
+        return parseJson(responseBody);
+    }
 
-                    @Override
-                    public boolean isExceptionToRetry(Exception exception)
-                    {
-                        return task.getId().isPresent();
-                    }
+    private JsonNode sendRequest(ElasticsearchTransport transport, ElasticsearchBulkScheduler scheduler,
+                                 String path, HttpMethod method, PluginTask task, String content)
+    {
+        return sendRequest(transport, scheduler, path, method, task, content.getBytes(StandardCharsets.UTF_8), "application/json", null);
+    }
 
-                    @Override
-                    public boolean isResponseStatusToRetry(org.eclipse.jetty.client.api.Response response)
-                    {
-                        int status = response.getStatus();
-                        if (status == 404) {
-                            throw new ResourceNotFoundException("Requested resource was not found");
-                        }
-                        else if (status == 429) {
-                            return true;  // Retry if 429.
-                        }
-                        return status / 100 != 4;  // Retry unless 4xx except for 429.
+    private JsonNode sendRequest(ElasticsearchTransport transport, ElasticsearchBulkScheduler scheduler,
+                                 String path, HttpMethod method, PluginTask task, byte[] contentBytes, String contentType,
+                                 ElasticsearchBulkTrace trace)
+    {
+        ElasticsearchRequestTemplate template = getRequestTemplate(task);
+        String uri = template.createRequestUri(path);
+        if (trace != null) {
+            trace.setNode(uri.substring(0, uri.length() - path.length()));
+        }
+        String authorizationHeader = template.getAuthorizationHeader();
+        ElasticsearchCircuitBreaker circuitBreaker = scheduler == null ? null : scheduler.getCircuitBreaker();
+        // Resending POST after a connection error may create duplicated documents unless they have ids
+        boolean retryConnectionError = method != HttpMethod.POST || task.getId().isPresent();
+        ElasticsearchRetryPolicy retryPolicy = getRetryPolicy(task);
+        ElasticsearchRetryPolicy.RetryState retryState = retryPolicy.newRetryState();
+
+        while (true) {
+            RuntimeException failure;
+            ElasticsearchRetryPolicy.FailureType failureType;
+            long retryAfterMillis = -1;
+            try {
+                String responseBody = transport.send(method, uri, authorizationHeader, contentBytes, contentType);
+                return parseJson(responseBody);
+            }
+            catch (ElasticsearchTransport.ResponseException ex) {
+                int status = ex.getStatus();
+                if (status == 404) {
+                    throw new ResourceNotFoundException("Requested resource was not found");
+                }
+                else if (status == 429) {
+                    failureType = ElasticsearchRetryPolicy.FailureType.REJECTED;
+                    retryAfterMillis = ElasticsearchRetryPolicy.parseRetryAfterMillis(ex.getRetryAfter());
+                    if (scheduler != null) {
+                        scheduler.onRejected();
                     }
-                });
-            return parseJson(responseBody);
+                }
+                else if (status / 100 == 4) {
+                    throw ex;  // Retry unless 4xx except for 429.
+                }
+                else {
+                    failureType = ElasticsearchRetryPolicy.FailureType.SERVER_ERROR;
+                }
+                failure = ex;
+            }
+            catch (DataException ex) {
+                throw ex;  // Don't retry when response body is invalid
+            }
+            catch (RuntimeException ex) {
+                if (!retryConnectionError) {
+                    throw ex;
+                }
+                failureType = ElasticsearchRetryPolicy.FailureType.CONNECTION;
+                failure = ex;
+            }
+
+            if (circuitBreaker != null && failureType != ElasticsearchRetryPolicy.FailureType.REJECTED) {
+                circuitBreaker.onFailure();
+                if (circuitBreaker.isOpen()) {
+                    throw failure;  // Stop retrying while the circuit is open.
+                }
+            }
+
+            long interval = retryPolicy.nextRetryIntervalMillis(retryState, failureType, retryAfterMillis);
+            if (interval < 0) {
+                throw failure;
+            }
+            if (scheduler != null) {
+                scheduler.getMetrics().onRetry();
+            }
+            if (trace != null) {
+                trace.addRetry();
+            }
+            ElasticsearchFlightRecorder.begin(task, EventType.RETRY_SCHEDULED).set(0, failureType.toString()).set(1, interval).commit();
+            log.warn(String.format("Retrying request to %s in %d ms. %s", uri, interval, failure.getMessage()));
+            sleep(interval);
+        }
+    }
+
+    // Built once per task and reused by all requests
+    private synchronized ElasticsearchRequestTemplate getRequestTemplate(PluginTask task)
+    {
+        if (template == null || template.getTask() != task) {
+            template = new ElasticsearchRequestTemplate(task);
+            // Discovery request itself is sent to the configured nodes, because ingest nodes are not set yet
+            if (task.getIngestNodeRouting()) {
+                template.setIngestBaseUris(discoverIngestNodes(task));
+            }
         }
+        return template;
     }
 
-    private String createRequestUri(PluginTask task, String path)
+    // Retry policy keeps the total retry time of the task, so create it once per client
+    private synchronized ElasticsearchRetryPolicy getRetryPolicy(PluginTask task)
     {
-        if (!path.startsWith("/")) {
-            path = "/" + path;
+        if (retryPolicy == null) {
+            retryPolicy = new ElasticsearchRetryPolicy(task);
         }
-        String protocol = task.getUseSsl() ? "https" : "http";
-        String nodeAddress = getRandomNodeAddress(task);
-        return String.format("%s://%s%s", protocol, nodeAddress, path);
+        return retryPolicy;
     }
 
-    // Return node address (RoundRobin)
-    private String getRandomNodeAddress(PluginTask task)
+    private void sleep(long millis)
     {
-        List<NodeAddressTask> nodes = task.getNodes();
-        Random random = new Random();
-        int index = random.nextInt(nodes.size());
-        NodeAddressTask node =  nodes.get(index);
-        return node.getHost() + ":" + node.getPort();
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(ex);
+        }
     }
 
     private JsonNode parseJson(final String json) throws DataException
@@ -447,37 +1239,20 @@ public class ElasticsearchHttpClient
         }
     }
 
-    private Jetty92RetryHelper createRetryHelper(PluginTask task)
+    ElasticsearchTransport createTransport(PluginTask task)
     {
-        return new Jetty92RetryHelper(
-            task.getMaximumRetries(),
-            task.getInitialRetryIntervalMillis(),
-            task.getMaximumRetryIntervalMillis(),
-            new Jetty92ClientCreator() {
-                @Override
-                public org.eclipse.jetty.client.HttpClient createAndStart()
-                {
-                    org.eclipse.jetty.client.HttpClient client = new org.eclipse.jetty.client.HttpClient(new SslContextFactory());
-                    try {
-                        client.start();
-                        return client;
-                    }
-                    catch (Exception e) {
-                        throw Throwables.propagate(e);
-                    }
-                }
-            });
+        switch (task.getTransport()) {
+            case URL_CONNECTION:
+                return new ElasticsearchUrlConnectionTransport(task);
+            default:
+                return new ElasticsearchJettyTransport(task);
+        }
     }
 
     @VisibleForTesting
     protected String getAuthorizationHeader(PluginTask task)
     {
-        String header = "";
-        if (task.getAuthMethod() == AuthMethod.BASIC) {
-            String authString = task.getUser().get() + ":" + task.getPassword().get();
-            header = "Basic " + DatatypeConverter.printBase64Binary(authString.getBytes());
-        }
-        return header;
+        return ElasticsearchRequestTemplate.createAuthorizationHeader(task);
     }
 
     public class ResourceNotFoundException extends RuntimeException implements UserDataException
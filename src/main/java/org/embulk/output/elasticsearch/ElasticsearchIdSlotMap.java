@@ -0,0 +1,90 @@
+package org.embulk.output.elasticsearch;
+
+import java.util.Arrays;
+
+/**
+ * ElasticsearchIdSlotMap maps 64-bit hashes of document ids to slots of the buffered records.
+ *
+ * It is an open addressing hash map of primitive arrays, so that buffering doesn't allocate an entry object per record.
+ */
+public class ElasticsearchIdSlotMap
+{
+    private static final int NO_SLOT = -1;
+
+    private long[] keys;
+    // slot + 1, 0 means empty
+    private int[] values;
+    private int size;
+
+    public ElasticsearchIdSlotMap(int expectedSize)
+    {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        this.size = 0;
+    }
+
+    // Returns slot of the hash or -1 if not found
+    public int get(long hash)
+    {
+        int mask = keys.length - 1;
+        for (int i = mix(hash) & mask; values[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == hash) {
+                return values[i] - 1;
+            }
+        }
+        return NO_SLOT;
+    }
+
+    public void put(long hash, int slot)
+    {
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length << 1);
+        }
+        int mask = keys.length - 1;
+        int i = mix(hash) & mask;
+        for (; values[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == hash) {
+                values[i] = slot + 1;
+                return;
+            }
+        }
+        keys[i] = hash;
+        values[i] = slot + 1;
+        size++;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public void clear()
+    {
+        Arrays.fill(values, 0);
+        size = 0;
+    }
+
+    private void resize(int capacity)
+    {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[capacity];
+        values = new int[capacity];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != 0) {
+                put(oldKeys[i], oldValues[i] - 1);
+            }
+        }
+    }
+
+    private static int mix(long hash)
+    {
+        long h = hash ^ (hash >>> 32);
+        return (int) (h ^ (h >>> 16));
+    }
+}
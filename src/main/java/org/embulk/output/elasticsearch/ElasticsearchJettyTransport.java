@@ -0,0 +1,105 @@
+package org.embulk.output.elasticsearch;
+
+import com.google.common.base.Throwables;
+import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.http.HttpMethod;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.embulk.util.retryhelper.jetty92.Jetty92ClientCreator;
+import org.embulk.util.retryhelper.jetty92.Jetty92RetryHelper;
+import org.embulk.util.retryhelper.jetty92.Jetty92SingleRequester;
+import org.embulk.util.retryhelper.jetty92.StringJetty92ResponseEntityReader;
+
+/**
+ * ElasticsearchJettyTransport is an implementation of {@code ElasticsearchTransport} with Jetty 9.2 HttpClient
+ * through embulk-util-retryhelper-jetty92.
+ */
+public class ElasticsearchJettyTransport
+        implements ElasticsearchTransport
+{
+    private final PluginTask task;
+    private final Jetty92RetryHelper retryHelper;
+
+    public ElasticsearchJettyTransport(final PluginTask task)
+    {
+        this.task = task;
+        // Retries are handled by ElasticsearchRetryPolicy. Retry helper only sends the request once.
+        this.retryHelper = new Jetty92RetryHelper(
+            0,
+            task.getInitialRetryIntervalMillis(),
+            task.getMaximumRetryIntervalMillis(),
+            new Jetty92ClientCreator() {
+                @Override
+                public org.eclipse.jetty.client.HttpClient createAndStart()
+                {
+                    org.eclipse.jetty.client.HttpClient client = new org.eclipse.jetty.client.HttpClient(ElasticsearchSslContext.getSslContextFactory(task));
+                    // Keep a small number of persistent connections per node. Bulk requests beyond them wait in the client queue.
+                    client.setMaxConnectionsPerDestination(task.getMaxConnectionsPerNode().or(Math.max(1, task.getConcurrentRequests())));
+                    client.setMaxRequestsQueuedPerDestination(task.getMaxRequestsQueuedPerNode());
+                    // Idle timeout also applies while waiting for a response, so it must not cut off a slow bulk request before timeout_millis
+                    client.setIdleTimeout(task.getIdleTimeoutMillis().or((long) task.getTimeoutMills()));
+                    client.setConnectTimeout(task.getConnectTimeoutMillis());
+                    try {
+                        client.start();
+                        return client;
+                    }
+                    catch (Exception e) {
+                        throw Throwables.propagate(e);
+                    }
+                }
+            });
+    }
+
+    @Override
+    public String send(final HttpMethod method, final String uri, final String authorizationHeader, final byte[] content, final String contentType)
+    {
+        final org.eclipse.jetty.client.api.Response[] failedResponse = new org.eclipse.jetty.client.api.Response[1];
+        try {
+            return retryHelper.requestWithRetry(
+                new StringJetty92ResponseEntityReader(task.getTimeoutMills()),
+                new Jetty92SingleRequester() {
+                    @Override
+                    public void requestOnce(org.eclipse.jetty.client.HttpClient client, org.eclipse.jetty.client.api.Response.Listener responseListener)
+                    {
+                        org.eclipse.jetty.client.api.Request request = client
+                            .newRequest(uri)
+                            .accept("application/json")
+                            .method(method);
+                        if (method == HttpMethod.POST || content.length > 0) {
+                            request.content(new BytesContentProvider(content), contentType);
+                        }
+
+                        if (!authorizationHeader.isEmpty()) {
+                            request.header("Authorization", authorizationHeader);
+                        }
+                        request.send(responseListener);
+                    }
+
+                    @Override
+                    public boolean isExceptionToRetry(Exception exception)
+                    {
+                        return false;
+                    }
+
+                    @Override
+                    public boolean isResponseStatusToRetry(org.eclipse.jetty.client.api.Response response)
+                    {
+                        failedResponse[0] = response;
+                        return false;
+                    }
+                });
+        }
+        catch (RuntimeException ex) {
+            if (failedResponse[0] != null) {
+                org.eclipse.jetty.client.api.Response response = failedResponse[0];
+                throw new ResponseException(response.getStatus(), response.getHeaders().get("Retry-After"), ex.getMessage(), ex);
+            }
+            throw ex;
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        retryHelper.close();
+    }
+}
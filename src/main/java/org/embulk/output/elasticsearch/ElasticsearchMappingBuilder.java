@@ -0,0 +1,239 @@
+package org.embulk.output.elasticsearch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.embulk.config.ConfigException;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.embulk.spi.Column;
+import org.embulk.spi.ColumnVisitor;
+import org.embulk.spi.Schema;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * ElasticsearchMappingBuilder builds the type mapping applied before loading.
+ *
+ * The mapping is read from mapping_file, or derived from the Embulk {@code Schema} with the field names of documents.
+ */
+public class ElasticsearchMappingBuilder
+{
+    // Same format as the timestamp formatter of ElasticsearchOutputPluginDelegate
+    private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSZ||strict_date_optional_time||epoch_millis";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final PluginTask task;
+    private final int esMajorVersion;
+
+    public ElasticsearchMappingBuilder(PluginTask task, String esVersion)
+    {
+        this.task = task;
+        this.esMajorVersion = parseMajorVersion(esVersion);
+    }
+
+    public int getEsMajorVersion()
+    {
+        return esMajorVersion;
+    }
+
+    public ObjectNode build(Schema schema)
+    {
+        ObjectNode mapping = task.getMappingFile().isPresent() ? readMappingFile(task.getMappingFile().get()) : deriveMapping(schema);
+        // Every document gets the content hash, so it must be mapped when dynamic mapping is disabled. Mapping in mapping_file is kept.
+        if (task.getSkipUnchanged()) {
+            ObjectNode properties = mapping.has("properties") ? (ObjectNode) mapping.get("properties") : mapping.putObject("properties");
+            if (!properties.has(task.getContentHashField())) {
+                properties.set(task.getContentHashField(), contentHashMapping());
+            }
+        }
+        if (task.getDynamicMapping().isPresent()) {
+            mapping.put("dynamic", task.getDynamicMapping().get().toString());
+        }
+        return mapping;
+    }
+
+    private ObjectNode readMappingFile(String path)
+    {
+        try {
+            JsonNode mapping = mapper.readTree(new File(path));
+            if (mapping == null || !mapping.isObject()) {
+                throw new ConfigException(String.format("mapping_file '%s' must contain a JSON object", path));
+            }
+            return (ObjectNode) mapping;
+        }
+        catch (IOException ex) {
+            throw new ConfigException(String.format("Failed to read mapping_file '%s'", path), ex);
+        }
+    }
+
+    private ObjectNode deriveMapping(Schema schema)
+    {
+        ObjectNode mapping = mapper.createObjectNode();
+        ObjectNode properties = mapping.putObject("properties");
+
+        List<Column> columns = new ArrayList<>();
+        List<String> fieldNames = new ArrayList<>();
+        if (ElasticsearchFieldProjection.isEnabled(task)) {
+            ElasticsearchFieldProjection projection = ElasticsearchFieldProjection.of(task, schema);
+            columns.addAll(projection.getColumns());
+            for (int i = 0; i < columns.size(); i++) {
+                fieldNames.add(projection.getFieldName(i));
+            }
+        }
+        else {
+            for (Column column : schema.getColumns()) {
+                columns.add(column);
+                fieldNames.add(column.getName());
+            }
+        }
+
+        // index_fields and pipeline_column are removed from documents, and json_array_fields have unknown element types
+        Set<String> skipped = new HashSet<>();
+        if (task.getIndexFields().isPresent()) {
+            skipped.addAll(task.getIndexFields().get());
+        }
+        if (task.getPipelineColumn().isPresent()) {
+            skipped.add(task.getPipelineColumn().get());
+        }
+        if (task.getJsonArrayFields().isPresent()) {
+            skipped.addAll(task.getJsonArrayFields().get());
+        }
+        Map<String, List<String>> nestedFields = task.getNestedFields().orNull();
+
+        for (int i = 0; i < columns.size(); i++) {
+            String fieldName = fieldNames.get(i);
+            if (skipped.contains(fieldName)) {
+                continue;
+            }
+            ObjectNode parent = properties;
+            String name = fieldName;
+            // nested_fields put "key.value" columns into object "key"
+            if (nestedFields != null) {
+                for (Map.Entry<String, List<String>> nested : nestedFields.entrySet()) {
+                    String key = nested.getKey();
+                    if (fieldName.startsWith(key + ".") && nested.getValue().contains(fieldName.substring(key.length() + 1))) {
+                        ObjectNode object = properties.has(key) ? (ObjectNode) properties.get(key) : properties.putObject(key);
+                        parent = object.has("properties") ? (ObjectNode) object.get("properties") : object.putObject("properties");
+                        name = fieldName.substring(key.length() + 1);
+                        break;
+                    }
+                }
+            }
+            parent.set(name, columnMapping(columns.get(i)));
+        }
+
+        for (Map.Entry<String, JsonNode> constantField : task.getConstantFields().entrySet()) {
+            properties.set(constantField.getKey(), constantMapping(constantField.getValue()));
+        }
+        return mapping;
+    }
+
+    private ObjectNode columnMapping(Column column)
+    {
+        final ObjectNode field = mapper.createObjectNode();
+        column.visit(new ColumnVisitor() {
+            @Override
+            public void booleanColumn(Column column)
+            {
+                field.put("type", "boolean");
+            }
+
+            @Override
+            public void longColumn(Column column)
+            {
+                field.put("type", "long");
+            }
+
+            @Override
+            public void doubleColumn(Column column)
+            {
+                field.put("type", "double");
+            }
+
+            @Override
+            public void stringColumn(Column column)
+            {
+                putKeyword(field);
+            }
+
+            @Override
+            public void timestampColumn(Column column)
+            {
+                field.put("type", "date");
+                field.put("format", DATE_FORMAT);
+            }
+
+            @Override
+            public void jsonColumn(Column column)
+            {
+                field.put("type", "object");
+            }
+        });
+        return field;
+    }
+
+    private ObjectNode constantMapping(JsonNode value)
+    {
+        ObjectNode field = mapper.createObjectNode();
+        if (value.isIntegralNumber()) {
+            field.put("type", "long");
+        }
+        else if (value.isNumber()) {
+            field.put("type", "double");
+        }
+        else if (value.isBoolean()) {
+            field.put("type", "boolean");
+        }
+        else if (value.isTextual()) {
+            putKeyword(field);
+        }
+        else {
+            field.put("type", "object");
+        }
+        return field;
+    }
+
+    // The hash is only looked up by _mget, which reads _source. It doesn't need to be searched.
+    private ObjectNode contentHashMapping()
+    {
+        ObjectNode field = mapper.createObjectNode();
+        if (esMajorVersion >= 5) {
+            field.put("type", "keyword");
+            field.put("index", false);
+        }
+        else {
+            field.put("type", "string");
+            field.put("index", "no");
+        }
+        return field;
+    }
+
+    // keyword type was introduced in 5.0. Older versions use not_analyzed string.
+    private void putKeyword(ObjectNode field)
+    {
+        if (esMajorVersion >= 5) {
+            field.put("type", "keyword");
+        }
+        else {
+            field.put("type", "string");
+            field.put("index", "not_analyzed");
+        }
+    }
+
+    static int parseMajorVersion(String esVersion)
+    {
+        try {
+            int dot = esVersion.indexOf('.');
+            return Integer.parseInt(dot < 0 ? esVersion : esVersion.substring(0, dot));
+        }
+        catch (NumberFormatException ex) {
+            throw new ConfigException(String.format("Unknown Elasticsearch version '%s'", esVersion), ex);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package org.embulk.output.elasticsearch;
+
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ElasticsearchMetrics counts bulk requests of all tasks in the JVM. It is owned by {@code ElasticsearchBulkScheduler}.
+ *
+ * Counters are always kept. They are registered as a JMX MBean when metrics_jmx is true,
+ * and exposed in Prometheus text format by {@code ElasticsearchPrometheusExporter} when metrics_port is set.
+ */
+public class ElasticsearchMetrics
+        implements ElasticsearchMetricsMBean
+{
+    public static final String OBJECT_NAME = "org.embulk.output.elasticsearch:type=BulkMetrics";
+    // Upper bounds of latency buckets in milliseconds. The last bucket has no upper bound.
+    static final long[] LATENCY_BUCKETS = {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+
+    private final Logger log;
+    private final AtomicLong recordsSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bulkRequests = new AtomicLong();
+    private final AtomicLong failedBulkRequests = new AtomicLong();
+    private final AtomicInteger inFlightBulkRequests = new AtomicInteger();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLongArray latencyBuckets = new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+    private final AtomicLong latencySumMillis = new AtomicLong();
+    private ObjectName registeredName;
+    private ElasticsearchPrometheusExporter exporter;
+
+    public ElasticsearchMetrics()
+    {
+        this.log = Exec.getLogger(getClass());
+    }
+
+    public void start(PluginTask task)
+    {
+        if (task.getMetricsJmx()) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName(OBJECT_NAME);
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(this, name);
+                registeredName = name;
+            }
+            catch (JMException ex) {
+                log.warn("Failed to register JMX MBean " + OBJECT_NAME, ex);
+            }
+        }
+        if (task.getMetricsPort().isPresent()) {
+            exporter = new ElasticsearchPrometheusExporter(this, task.getMetricsBindAddress(), task.getMetricsPort().get());
+            exporter.start();
+        }
+    }
+
+    public void stop()
+    {
+        if (registeredName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+            }
+            catch (JMException ex) {
+                log.warn("Failed to unregister JMX MBean " + OBJECT_NAME, ex);
+            }
+            registeredName = null;
+        }
+        if (exporter != null) {
+            exporter.stop();
+            exporter = null;
+        }
+    }
+
+    public void onBulkStarted()
+    {
+        inFlightBulkRequests.incrementAndGet();
+    }
+
+    // Called when a bulk request succeeded or finally failed. Attempts which are sent again are passed to onBulkParked().
+    public void onBulkFinished(boolean succeeded, long latencyMillis)
+    {
+        inFlightBulkRequests.decrementAndGet();
+        if (!succeeded) {
+            failedBulkRequests.incrementAndGet();
+            return;
+        }
+        bulkRequests.incrementAndGet();
+        latencySumMillis.addAndGet(latencyMillis);
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS.length && latencyMillis > LATENCY_BUCKETS[bucket]) {
+            bucket++;
+        }
+        latencyBuckets.incrementAndGet(bucket);
+    }
+
+    // Called once per bulk request after rejected items are retried. Items failed permanently are not counted.
+    public void onDocumentsSent(int documents, long bytes)
+    {
+        recordsSent.addAndGet(documents);
+        bytesSent.addAndGet(bytes);
+    }
+
+    // A bulk request parked by the circuit breaker is sent again, so it's counted as a retry instead of a failure
+    public void onBulkParked()
+    {
+        inFlightBulkRequests.decrementAndGet();
+        retries.incrementAndGet();
+    }
+
+    public void onRetry()
+    {
+        retries.incrementAndGet();
+    }
+
+    public void onRejected()
+    {
+        rejections.incrementAndGet();
+    }
+
+    @Override
+    public long getRecordsSent()
+    {
+        return recordsSent.get();
+    }
+
+    @Override
+    public long getBytesSent()
+    {
+        return bytesSent.get();
+    }
+
+    @Override
+    public long getBulkRequests()
+    {
+        return bulkRequests.get();
+    }
+
+    @Override
+    public long getFailedBulkRequests()
+    {
+        return failedBulkRequests.get();
+    }
+
+    @Override
+    public int getInFlightBulkRequests()
+    {
+        return inFlightBulkRequests.get();
+    }
+
+    @Override
+    public long getRetries()
+    {
+        return retries.get();
+    }
+
+    @Override
+    public long getRejections()
+    {
+        return rejections.get();
+    }
+
+    @Override
+    public long getLatency50thPercentileMillis()
+    {
+        return getLatencyPercentileMillis(0.50);
+    }
+
+    @Override
+    public long getLatency95thPercentileMillis()
+    {
+        return getLatencyPercentileMillis(0.95);
+    }
+
+    @Override
+    public long getLatency99thPercentileMillis()
+    {
+        return getLatencyPercentileMillis(0.99);
+    }
+
+    public long getLatencySumMillis()
+    {
+        return latencySumMillis.get();
+    }
+
+    // Count of the bucket i, not cumulative
+    public long getLatencyBucketCount(int i)
+    {
+        return latencyBuckets.get(i);
+    }
+
+    // Returns the upper bound of the bucket containing the percentile, or the largest bound for the last bucket.
+    // Returns 0 when no bulk request has finished yet.
+    long getLatencyPercentileMillis(double percentile)
+    {
+        long[] counts = new long[latencyBuckets.length()];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = latencyBuckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile);
+        long cumulative = 0;
+        for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+            cumulative += counts[i];
+            if (cumulative >= rank) {
+                return LATENCY_BUCKETS[i];
+            }
+        }
+        return LATENCY_BUCKETS[LATENCY_BUCKETS.length - 1];
+    }
+}
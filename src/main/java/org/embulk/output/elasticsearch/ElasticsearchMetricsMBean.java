@@ -0,0 +1,27 @@
+package org.embulk.output.elasticsearch;
+
+/**
+ * ElasticsearchMetricsMBean is the JMX interface of {@code ElasticsearchMetrics}.
+ */
+public interface ElasticsearchMetricsMBean
+{
+    long getRecordsSent();
+
+    long getBytesSent();
+
+    long getBulkRequests();
+
+    long getFailedBulkRequests();
+
+    int getInFlightBulkRequests();
+
+    long getRetries();
+
+    long getRejections();
+
+    long getLatency50thPercentileMillis();
+
+    long getLatency95thPercentileMillis();
+
+    long getLatency99thPercentileMillis();
+}
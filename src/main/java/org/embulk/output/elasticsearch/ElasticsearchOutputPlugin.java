@@ -1,6 +1,10 @@
 package org.embulk.output.elasticsearch;
 
 import org.embulk.base.restclient.RestClientOutputPluginBase;
+import org.embulk.config.TaskSource;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TransactionalPageOutput;
 
 public class ElasticsearchOutputPlugin
         extends RestClientOutputPluginBase<ElasticsearchOutputPluginDelegate.PluginTask>
@@ -9,4 +13,14 @@ public class ElasticsearchOutputPlugin
     {
         super(ElasticsearchOutputPluginDelegate.PluginTask.class, new ElasticsearchOutputPluginDelegate());
     }
+
+    @Override
+    public TransactionalPageOutput open(TaskSource taskSource, Schema schema, int taskIndex)
+    {
+        PluginTask task = taskSource.loadTask(PluginTask.class);
+        if (task.getDirectEncoder()) {
+            return new ElasticsearchPageOutput(task, schema, taskIndex);
+        }
+        return super.open(taskSource, schema, taskIndex);
+    }
 }
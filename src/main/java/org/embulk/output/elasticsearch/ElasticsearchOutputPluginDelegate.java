@@ -2,6 +2,7 @@ package org.embulk.output.elasticsearch;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonValue;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.Optional;
 import org.embulk.base.restclient.RestClientOutputPluginDelegate;
 import org.embulk.base.restclient.RestClientOutputTaskBase;
@@ -32,9 +33,14 @@ public class ElasticsearchOutputPluginDelegate
     private final ElasticsearchHttpClient client;
 
     public ElasticsearchOutputPluginDelegate()
+    {
+        this(new ElasticsearchHttpClient());
+    }
+
+    ElasticsearchOutputPluginDelegate(ElasticsearchHttpClient client)
     {
         this.log = Exec.getLogger(getClass());
-        this.client = new ElasticsearchHttpClient();
+        this.client = client;
     }
 
     public interface NodeAddressTask
@@ -74,10 +80,42 @@ public class ElasticsearchOutputPluginDelegate
         @ConfigDefault("null")
         Optional<Map<String, List<String>>> getNestedFields();
 
+        @Config("include_columns")
+        @ConfigDefault("null")
+        Optional<List<String>> getIncludeColumns();
+
+        @Config("exclude_columns")
+        @ConfigDefault("null")
+        Optional<List<String>> getExcludeColumns();
+
+        @Config("rename_columns")
+        @ConfigDefault("{}")
+        Map<String, String> getRenameColumns();
+
+        @Config("constant_fields")
+        @ConfigDefault("{}")
+        Map<String, JsonNode> getConstantFields();
+
+        @Config("create_mapping")
+        @ConfigDefault("false")
+        boolean getCreateMapping();
+
+        @Config("mapping_file")
+        @ConfigDefault("null")
+        Optional<String> getMappingFile();
+
+        @Config("dynamic_mapping")
+        @ConfigDefault("null")
+        Optional<DynamicMapping> getDynamicMapping();
+
         @Config("json_array_fields")
         @ConfigDefault("null")
         Optional<List<String>> getJsonArrayFields();
 
+        @Config("validate_json_array_fields")
+        @ConfigDefault("true")
+        boolean getValidateJsonArrayFields();
+
         @Config("alias")
         @ConfigDefault("null")
         Optional<String> getAlias();
@@ -94,6 +132,46 @@ public class ElasticsearchOutputPluginDelegate
         @ConfigDefault("false")
         boolean getUseSsl();
 
+        @Config("ssl_truststore_path")
+        @ConfigDefault("null")
+        Optional<String> getSslTruststorePath();
+
+        @Config("ssl_truststore_password")
+        @ConfigDefault("null")
+        Optional<String> getSslTruststorePassword();
+
+        @Config("ssl_truststore_type")
+        @ConfigDefault("\"JKS\"")
+        String getSslTruststoreType();
+
+        @Config("ssl_keystore_path")
+        @ConfigDefault("null")
+        Optional<String> getSslKeystorePath();
+
+        @Config("ssl_keystore_password")
+        @ConfigDefault("null")
+        Optional<String> getSslKeystorePassword();
+
+        @Config("ssl_keystore_type")
+        @ConfigDefault("\"JKS\"")
+        String getSslKeystoreType();
+
+        @Config("ssl_verify_hostname")
+        @ConfigDefault("false")
+        boolean getSslVerifyHostname();
+
+        @Config("ssl_protocols")
+        @ConfigDefault("null")
+        Optional<List<String>> getSslProtocols();
+
+        @Config("ssl_cipher_suites")
+        @ConfigDefault("null")
+        Optional<List<String>> getSslCipherSuites();
+
+        @Config("ssl_session_cache_size")
+        @ConfigDefault("1024")
+        int getSslSessionCacheSize();
+
         @Config("auth_method")
         @ConfigDefault("\"none\"")
         AuthMethod getAuthMethod();
@@ -106,17 +184,184 @@ public class ElasticsearchOutputPluginDelegate
         @ConfigDefault("null")
         Optional<String> getPassword();
 
+        @Config("api_key_id")
+        @ConfigDefault("null")
+        Optional<String> getApiKeyId();
+
+        @Config("api_key")
+        @ConfigDefault("null")
+        Optional<String> getApiKey();
+
+        @Config("bearer_token")
+        @ConfigDefault("null")
+        Optional<String> getBearerToken();
+
+        @Config("bearer_token_file")
+        @ConfigDefault("null")
+        Optional<String> getBearerTokenFile();
+
+        @Config("auth_refresh_interval_millis")
+        @ConfigDefault("300000")
+        long getAuthRefreshIntervalMillis();
+
         @Config("bulk_actions")
         @ConfigDefault("1000")
         int getBulkActions();
+        void setBulkActions(int bulkActions);
 
         @Config("bulk_size")
         @ConfigDefault("5242880")
         long getBulkSize();
+        void setBulkSize(long bulkSize);
 
         @Config("concurrent_requests")
         @ConfigDefault("5")
         int getConcurrentRequests();
+        void setConcurrentRequests(int concurrentRequests);
+
+        @Config("deduplicate_id")
+        @ConfigDefault("false")
+        boolean getDeduplicateId();
+
+        @Config("deduplicate_window")
+        @ConfigDefault("1")
+        int getDeduplicateWindow();
+
+        @Config("direct_encoder")
+        @ConfigDefault("false")
+        boolean getDirectEncoder();
+
+        @Config("content_type")
+        @ConfigDefault("\"json\"")
+        ContentType getContentType();
+
+        @Config("bulk_file_directory")
+        @ConfigDefault("null")
+        Optional<String> getBulkFileDirectory();
+
+        @Config("bulk_file_send")
+        @ConfigDefault("true")
+        boolean getBulkFileSend();
+
+        @Config("bulk_file_max_bytes")
+        @ConfigDefault("1073741824")
+        long getBulkFileMaxBytes();
+
+        @Config("bulk_file_compression")
+        @ConfigDefault("\"none\"")
+        BulkFileCompression getBulkFileCompression();
+
+        @Config("bulk_trace_size")
+        @ConfigDefault("0")
+        int getBulkTraceSize();
+
+        @Config("bulk_trace_slowest")
+        @ConfigDefault("10")
+        int getBulkTraceSlowest();
+
+        @Config("bulk_trace_slow_threshold_millis")
+        @ConfigDefault("null")
+        Optional<Long> getBulkTraceSlowThresholdMillis();
+
+        @Config("jfr_events")
+        @ConfigDefault("false")
+        boolean getJfrEvents();
+
+        @Config("op_type")
+        @ConfigDefault("\"index\"")
+        OpType getOpType();
+
+        @Config("data_stream")
+        @ConfigDefault("false")
+        boolean getDataStream();
+
+        @Config("rollover_max_docs")
+        @ConfigDefault("null")
+        Optional<Long> getRolloverMaxDocs();
+
+        @Config("rollover_max_size")
+        @ConfigDefault("null")
+        Optional<String> getRolloverMaxSize();
+
+        @Config("rollover_check_interval")
+        @ConfigDefault("10")
+        int getRolloverCheckInterval();
+
+        @Config("pipeline")
+        @ConfigDefault("null")
+        Optional<String> getPipeline();
+
+        @Config("pipeline_column")
+        @ConfigDefault("null")
+        Optional<String> getPipelineColumn();
+
+        @Config("ingest_node_routing")
+        @ConfigDefault("false")
+        boolean getIngestNodeRouting();
+
+        @Config("calibration")
+        @ConfigDefault("\"none\"")
+        Calibration getCalibration();
+
+        @Config("metrics_jmx")
+        @ConfigDefault("false")
+        boolean getMetricsJmx();
+
+        @Config("metrics_port")
+        @ConfigDefault("null")
+        Optional<Integer> getMetricsPort();
+
+        @Config("metrics_bind_address")
+        @ConfigDefault("\"127.0.0.1\"")
+        String getMetricsBindAddress();
+
+        @Config("encoder_threads")
+        @ConfigDefault("1")
+        int getEncoderThreads();
+
+        @Config("skip_unchanged")
+        @ConfigDefault("false")
+        boolean getSkipUnchanged();
+
+        @Config("content_hash_field")
+        @ConfigDefault("\"embulk_content_hash\"")
+        String getContentHashField();
+
+        @Config("maximum_documents_per_second")
+        @ConfigDefault("null")
+        Optional<Integer> getMaximumDocumentsPerSecond();
+
+        @Config("maximum_bytes_per_second")
+        @ConfigDefault("null")
+        Optional<Long> getMaximumBytesPerSecond();
+
+        @Config("cluster_pressure_monitor")
+        @ConfigDefault("false")
+        boolean getClusterPressureMonitor();
+
+        @Config("cluster_pressure_poll_interval_millis")
+        @ConfigDefault("5000")
+        int getClusterPressurePollIntervalMillis();
+
+        @Config("cluster_pressure_queue_threshold")
+        @ConfigDefault("100")
+        int getClusterPressureQueueThreshold();
+
+        @Config("cluster_pressure_heap_threshold_percent")
+        @ConfigDefault("90")
+        int getClusterPressureHeapThresholdPercent();
+
+        @Config("circuit_breaker_failure_threshold")
+        @ConfigDefault("0")
+        int getCircuitBreakerFailureThreshold();
+
+        @Config("circuit_breaker_open_millis")
+        @ConfigDefault("30000")
+        int getCircuitBreakerOpenMillis();
+
+        @Config("circuit_breaker_fail_fast")
+        @ConfigDefault("false")
+        boolean getCircuitBreakerFailFast();
 
         @Config("maximum_retries")
         @ConfigDefault("7")
@@ -130,14 +375,62 @@ public class ElasticsearchOutputPluginDelegate
         @ConfigDefault("120000")
         int getMaximumRetryIntervalMillis();
 
+        @Config("retry_backoff")
+        @ConfigDefault("\"decorrelated_jitter\"")
+        ElasticsearchRetryPolicy.Backoff getRetryBackoff();
+
+        @Config("maximum_connection_retries")
+        @ConfigDefault("null")
+        Optional<Integer> getMaximumConnectionRetries();
+
+        @Config("maximum_rejected_retries")
+        @ConfigDefault("null")
+        Optional<Integer> getMaximumRejectedRetries();
+
+        @Config("maximum_server_error_retries")
+        @ConfigDefault("null")
+        Optional<Integer> getMaximumServerErrorRetries();
+
+        @Config("retry_time_budget_millis")
+        @ConfigDefault("null")
+        Optional<Long> getRetryTimeBudgetMillis();
+
         @Config("timeout_millis")
         @ConfigDefault("60000")
         int getTimeoutMills();
 
+        @Config("transport")
+        @ConfigDefault("\"jetty\"")
+        Transport getTransport();
+
+        @Config("max_connections_per_node")
+        @ConfigDefault("null")
+        Optional<Integer> getMaxConnectionsPerNode();
+
+        @Config("max_requests_queued_per_node")
+        @ConfigDefault("1024")
+        int getMaxRequestsQueuedPerNode();
+
+        @Config("idle_timeout_millis")
+        @ConfigDefault("null")
+        Optional<Long> getIdleTimeoutMillis();
+
+        @Config("connect_timeout_millis")
+        @ConfigDefault("15000")
+        long getConnectTimeoutMillis();
+
         @Config("max_snapshot_waiting_secs")
         @ConfigDefault("1800")
         int getMaxSnapshotWaitingSecs();
 
+        @Config("snapshot_poll_interval_millis")
+        @ConfigDefault("2000")
+        long getSnapshotPollIntervalMillis();
+
+        @Config("delete_old_index_async")
+        @ConfigDefault("false")
+        boolean getDeleteOldIndexAsync();
+
         @Config("time_zone")
         @ConfigDefault("\"UTC\"")
         String getTimeZone();
@@ -146,7 +439,8 @@ public class ElasticsearchOutputPluginDelegate
     public enum Mode
     {
         INSERT,
-        REPLACE;
+        REPLACE,
+        REPLAY;
 
         @JsonValue
         @Override
@@ -163,8 +457,160 @@ public class ElasticsearchOutputPluginDelegate
                     return INSERT;
                 case "replace":
                     return REPLACE;
+                case "replay":
+                    return REPLAY;
+                default:
+                    throw new ConfigException(String.format("Unknown mode '%s'. Supported modes are insert, replace, replay", value));
+            }
+        }
+    }
+
+    public enum ContentType
+    {
+        JSON("application/json"),
+        SMILE("application/smile");
+
+        private final String mediaType;
+
+        ContentType(String mediaType)
+        {
+            this.mediaType = mediaType;
+        }
+
+        public String getMediaType()
+        {
+            return mediaType;
+        }
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+
+        @JsonCreator
+        public static ContentType fromString(String value)
+        {
+            switch (value) {
+                case "json":
+                    return JSON;
+                case "smile":
+                    return SMILE;
+                case "cbor":
+                    throw new ConfigException("content_type 'cbor' is not supported because Elasticsearch can't split CBOR bulk requests into actions");
+                default:
+                    throw new ConfigException(String.format("Unknown content_type '%s'. Supported content_type are json, smile", value));
+            }
+        }
+    }
+
+    public enum BulkFileCompression
+    {
+        NONE,
+        GZIP;
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+
+        @JsonCreator
+        public static BulkFileCompression fromString(String value)
+        {
+            switch (value) {
+                case "none":
+                    return NONE;
+                case "gzip":
+                    return GZIP;
+                default:
+                    throw new ConfigException(String.format("Unknown bulk_file_compression '%s'. Supported bulk_file_compression are none, gzip", value));
+            }
+        }
+    }
+
+    public enum DynamicMapping
+    {
+        TRUE,
+        FALSE,
+        STRICT;
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+
+        @JsonCreator
+        public static DynamicMapping fromString(String value)
+        {
+            switch (value) {
+                case "true":
+                    return TRUE;
+                case "false":
+                    return FALSE;
+                case "strict":
+                    return STRICT;
+                default:
+                    throw new ConfigException(String.format("Unknown dynamic_mapping '%s'. Supported dynamic_mapping are true, false, strict", value));
+            }
+        }
+    }
+
+    public enum OpType
+    {
+        INDEX,
+        CREATE;
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+
+        @JsonCreator
+        public static OpType fromString(String value)
+        {
+            switch (value) {
+                case "index":
+                    return INDEX;
+                case "create":
+                    return CREATE;
+                default:
+                    throw new ConfigException(String.format("Unknown op_type '%s'. Supported op_type are index, create", value));
+            }
+        }
+    }
+
+    public enum Calibration
+    {
+        NONE,
+        LOG,
+        APPLY;
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+
+        @JsonCreator
+        public static Calibration fromString(String value)
+        {
+            switch (value) {
+                case "none":
+                    return NONE;
+                case "log":
+                    return LOG;
+                case "apply":
+                    return APPLY;
                 default:
-                    throw new ConfigException(String.format("Unknown mode '%s'. Supported modes are insert, truncate_insert, replace", value));
+                    throw new ConfigException(String.format("Unknown calibration '%s'. Supported calibration are none, log, apply", value));
             }
         }
     }
@@ -172,7 +618,9 @@ public class ElasticsearchOutputPluginDelegate
     public enum AuthMethod
     {
         NONE,
-        BASIC;
+        BASIC,
+        API_KEY,
+        BEARER;
 
         @JsonValue
         @Override
@@ -189,8 +637,38 @@ public class ElasticsearchOutputPluginDelegate
                     return NONE;
                 case "basic":
                     return BASIC;
+                case "api_key":
+                    return API_KEY;
+                case "bearer":
+                    return BEARER;
+                default:
+                    throw new ConfigException(String.format("Unknown auth_method '%s'. Supported auth_method are none, basic, api_key, bearer", value));
+            }
+        }
+    }
+
+    public enum Transport
+    {
+        JETTY,
+        URL_CONNECTION;
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+
+        @JsonCreator
+        public static Transport fromString(String value)
+        {
+            switch (value) {
+                case "jetty":
+                    return JETTY;
+                case "url_connection":
+                    return URL_CONNECTION;
                 default:
-                    throw new ConfigException(String.format("Unknown auth_method '%s'. Supported auth_method are none, basic", value));
+                    throw new ConfigException(String.format("Unknown transport '%s'. Supported transport are jetty, url_connection", value));
             }
         }
     }
@@ -209,10 +687,26 @@ public class ElasticsearchOutputPluginDelegate
             }
         }
 
-        log.info(String.format("Connecting to Elasticsearch version:%s", client.getEsVersion(task)));
+        // Authorization header is built with the first request
+        if (task.getAuthMethod() == AuthMethod.BASIC) {
+            if (!task.getUser().isPresent() || !task.getPassword().isPresent()) {
+                throw new ConfigException("'user' and 'password' are required when auth_method='basic'");
+            }
+        }
+        if (task.getAuthMethod() == AuthMethod.API_KEY && !task.getApiKey().isPresent()) {
+            throw new ConfigException("'api_key' is required when auth_method='api_key'");
+        }
+        if (task.getAuthMethod() == AuthMethod.BEARER && !task.getBearerToken().isPresent() && !task.getBearerTokenFile().isPresent()) {
+            throw new ConfigException("'bearer_token' or 'bearer_token_file' is required when auth_method='bearer'");
+        }
+
+        String esVersion = client.getEsVersion(task);
+        log.info(String.format("Connecting to Elasticsearch version:%s", esVersion));
         log.info("Executing plugin with '{}' mode.", task.getMode());
         client.validateIndexOrAliasName(task.getIndex(), "index");
         client.validateIndexOrAliasName(task.getType(), "index_type");
+        // Checked before anything is created or changed in the cluster, and before replace mode renames the index
+        validateDataStreamAndRollover(task, esVersion);
 
         if (task.getMode().equals(Mode.REPLACE)) {
             task.setAlias(Optional.of(task.getIndex()));
@@ -223,18 +717,147 @@ public class ElasticsearchOutputPluginDelegate
         }
         log.info(String.format("Inserting data into index[%s]", task.getIndex()));
 
-        if (task.getAuthMethod() == AuthMethod.BASIC) {
-            if (!task.getUser().isPresent() || !task.getPassword().isPresent()) {
-                throw new ConfigException("'user' and 'password' are required when auth_method='basic'");
+
+        if (task.getMaximumDocumentsPerSecond().isPresent() && task.getMaximumDocumentsPerSecond().get() <= 0) {
+            throw new ConfigException("'maximum_documents_per_second' must be greater than 0");
+        }
+        if (task.getMaximumBytesPerSecond().isPresent() && task.getMaximumBytesPerSecond().get() <= 0) {
+            throw new ConfigException("'maximum_bytes_per_second' must be greater than 0");
+        }
+        if (task.getClusterPressureMonitor() && task.getClusterPressurePollIntervalMillis() <= 0) {
+            throw new ConfigException("'cluster_pressure_poll_interval_millis' must be greater than 0");
+        }
+        if (task.getDeduplicateId() && !task.getId().isPresent()) {
+            throw new ConfigException("'id' is required when deduplicate_id is true");
+        }
+        if (task.getMode() == Mode.REPLAY && !task.getBulkFileDirectory().isPresent()) {
+            throw new ConfigException("'bulk_file_directory' is required when mode is replay");
+        }
+        if (task.getBulkFileDirectory().isPresent() && task.getContentType() != ContentType.JSON) {
+            throw new ConfigException("bulk files support only content_type 'json'");
+        }
+        if (task.getBulkFileMaxBytes() <= 0) {
+            throw new ConfigException("'bulk_file_max_bytes' must be greater than 0");
+        }
+        if (task.getBulkTraceSize() < 0) {
+            throw new ConfigException("'bulk_trace_size' must not be negative");
+        }
+        if (task.getEncoderThreads() <= 0) {
+            throw new ConfigException("'encoder_threads' must be greater than 0");
+        }
+        if (task.getDeduplicateWindow() <= 0) {
+            throw new ConfigException("'deduplicate_window' must be greater than 0");
+        }
+        if (ElasticsearchFieldProjection.isEnabled(task)) {
+            ElasticsearchFieldProjection.of(task, embulkSchema);
+        }
+        if (task.getDynamicMapping().isPresent() && !task.getCreateMapping() && !task.getMappingFile().isPresent()) {
+            throw new ConfigException("'dynamic_mapping' requires create_mapping or mapping_file");
+        }
+        // Element types of json_array_fields are unknown, so the derived mapping leaves them to dynamic mapping.
+        // Strict mapping would reject every document with them at item level.
+        if (task.getDynamicMapping().orNull() == DynamicMapping.STRICT && task.getJsonArrayFields().isPresent() && !task.getMappingFile().isPresent()) {
+            throw new ConfigException("json_array_fields are not mapped by create_mapping. Use mapping_file or dynamic_mapping other than 'strict'");
+        }
+        if (task.getSkipUnchanged()) {
+            if (!task.getId().isPresent()) {
+                throw new ConfigException("'id' is required when skip_unchanged is true");
+            }
+            if (task.getMode().equals(Mode.REPLACE)) {
+                throw new ConfigException("skip_unchanged is not supported in replace mode because every document is written to a new index");
+            }
+        }
+        if ((task.getPipeline().isPresent() || task.getPipelineColumn().isPresent()) && ElasticsearchMappingBuilder.parseMajorVersion(esVersion) < 5) {
+            throw new ConfigException("'pipeline' and 'pipeline_column' require Elasticsearch 5.0 or later");
+        }
+        if (task.getPipelineColumn().isPresent()) {
+            // Throws SchemaConfigException when the column doesn't exist
+            embulkSchema.lookupColumn(task.getPipelineColumn().get());
+        }
+        if (task.getCalibration() != Calibration.NONE) {
+            calibrate(task, embulkSchema);
+        }
+        // Bulk request slots are shared by all tasks in the JVM. Earlier versions sent bulk requests of every task at the same time.
+        if (taskCount > task.getConcurrentRequests()) {
+            log.warn("{} tasks share {} concurrent bulk requests, so some tasks wait for others. Raise concurrent_requests to send from all tasks at the same time",
+                    taskCount, task.getConcurrentRequests());
+        }
+
+        // Mapping is put before loading so that the master node doesn't update mappings while bulk requests are running.
+        // This creates the index, so it runs after all validations not to leave an index behind for a rejected config.
+        if (task.getCreateMapping() || task.getMappingFile().isPresent()) {
+            ElasticsearchMappingBuilder mappingBuilder = new ElasticsearchMappingBuilder(task, esVersion);
+            client.putMapping(task.getIndex(), task, mappingBuilder.build(embulkSchema), mappingBuilder.getEsMajorVersion());
+        }
+    }
+
+    private void validateDataStreamAndRollover(PluginTask task, String esVersion)
+    {
+        if (task.getSkipUnchanged() && task.getOpType() == OpType.CREATE) {
+            throw new ConfigException("skip_unchanged is not supported with op_type 'create' because existing documents are never updated");
+        }
+        if (task.getDataStream()) {
+            if (task.getOpType() != OpType.CREATE) {
+                throw new ConfigException("'op_type' must be 'create' when data_stream is true");
             }
+            if (task.getMode() != Mode.INSERT) {
+                throw new ConfigException("data_stream is supported only in insert mode");
+            }
+            if (task.getCreateMapping() || task.getMappingFile().isPresent()) {
+                throw new ConfigException("Mappings of data streams are defined by index templates. Use create_mapping or mapping_file without data_stream");
+            }
+            String[] version = esVersion.split("\\.");
+            int major = ElasticsearchMappingBuilder.parseMajorVersion(esVersion);
+            if (major < 7 || (major == 7 && version.length > 1 && Integer.parseInt(version[1]) < 9)) {
+                throw new ConfigException("data_stream requires Elasticsearch 7.9 or later");
+            }
+        }
+        if (ElasticsearchRolloverManager.isEnabled(task)) {
+            if (task.getMode() != Mode.INSERT) {
+                throw new ConfigException("rollover is supported only in insert mode. Replace mode writes into a new index per run");
+            }
+            if (task.getRolloverCheckInterval() <= 0) {
+                throw new ConfigException("'rollover_check_interval' must be greater than 0");
+            }
+            if (task.getSkipUnchanged()) {
+                throw new ConfigException("skip_unchanged is not supported with rollover because documents in rolled over indices can't be looked up through the write alias");
+            }
+            if (!task.getDataStream() && !client.isAliasExisting(task.getIndex(), task)) {
+                throw new ConfigException(String.format("index '%s' must be a write alias or a data stream to roll over", task.getIndex()));
+            }
+        }
+    }
+
+    private void calibrate(PluginTask task, Schema embulkSchema)
+    {
+        ElasticsearchCapacityCalibrator.Recommendation recommendation = new ElasticsearchCapacityCalibrator(task, client, embulkSchema).calibrate();
+        log.info("Recommended bulk_actions:{} (current:{}), bulk_size:{} (current:{}), concurrent_requests:{} (current:{})",
+                recommendation.getBulkActions(), task.getBulkActions(),
+                recommendation.getBulkSize(), task.getBulkSize(),
+                recommendation.getConcurrentRequests(), task.getConcurrentRequests());
+        if (task.getCalibration() == Calibration.APPLY) {
+            task.setBulkActions(recommendation.getBulkActions());
+            task.setBulkSize(recommendation.getBulkSize());
+            task.setConcurrentRequests(recommendation.getConcurrentRequests());
+            log.info("Applied the recommended values to this run");
         }
     }
 
+    static TimestampFormatter createTimestampFormatter(PluginTask task)
+    {
+        return new TimestampFormatter(task.getJRuby(), "%Y-%m-%dT%H:%M:%S.%3N%z", DateTimeZone.forID(task.getTimeZone()));
+    }
+
     @Override  // Overridden from |ServiceRequestMapperBuildable|
     public JacksonServiceRequestMapper buildServiceRequestMapper(PluginTask task)
     {
-        TimestampFormatter formatter = new TimestampFormatter(task.getJRuby(), "%Y-%m-%dT%H:%M:%S.%3N%z", DateTimeZone.forID(task.getTimeZone()));
+        TimestampFormatter formatter = createTimestampFormatter(task);
 
+        if (ElasticsearchFieldProjection.isEnabled(task)) {
+            return JacksonServiceRequestMapper.builder()
+                .add(new ElasticsearchProjectionScope(task, formatter), new JacksonTopLevelValueLocator("record"))
+                .build();
+        }
         return JacksonServiceRequestMapper.builder()
             .add(new JacksonAllInObjectScope(formatter), new JacksonTopLevelValueLocator("record"))
             .build();
@@ -243,7 +866,7 @@ public class ElasticsearchOutputPluginDelegate
     @Override  // Overridden from |RecordBufferBuildable|
     public RecordBuffer buildRecordBuffer(PluginTask task, Schema schema, int taskIndex)
     {
-        return new ElasticsearchRecordBuffer("records", task);
+        return new ElasticsearchRecordBuffer("records", task, taskIndex);
     }
 
     @Override
@@ -259,6 +882,10 @@ public class ElasticsearchOutputPluginDelegate
             }
         }
 
+        if (task.getMode().equals(Mode.REPLAY)) {
+            totalInserted = new ElasticsearchBulkFileReplayer(task, client).replay();
+        }
+
         log.info("Insert completed. {} records", totalInserted);
         // Re assign alias only when repale mode
         if (task.getMode().equals(Mode.REPLACE)) {
@@ -0,0 +1,154 @@
+package org.embulk.output.elasticsearch;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.RawValue;
+import org.embulk.config.TaskReport;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.ContentType;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.embulk.spi.Column;
+import org.embulk.spi.ColumnVisitor;
+import org.embulk.spi.DataException;
+import org.embulk.spi.Exec;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TransactionalPageOutput;
+import org.embulk.spi.time.TimestampFormatter;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * ElasticsearchPageOutput is an implementation of {@code TransactionalPageOutput} which reads pages with {@code PageReader}
+ * and puts records into {@code ElasticsearchRecordBuffer} directly.
+ *
+ * It skips {@code JacksonServiceRecord} of embulk-base-restclient, which is serialized and parsed again for each record.
+ * JSON columns are copied into documents as raw JSON without being parsed, and the size of each document is
+ * counted while it's built instead of serializing it again.
+ */
+public class ElasticsearchPageOutput
+        implements TransactionalPageOutput
+{
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final PageReader pageReader;
+    private final ElasticsearchFieldProjection projection;
+    private final TimestampFormatter timestampFormatter;
+    private final ElasticsearchRecordBuffer recordBuffer;
+    private final boolean rawJson;
+    private int recordBytes;
+
+    public ElasticsearchPageOutput(PluginTask task, Schema schema, int taskIndex)
+    {
+        // Smile generator can't write raw JSON
+        this.rawJson = task.getContentType() != ContentType.SMILE;
+        this.pageReader = new PageReader(schema);
+        this.projection = ElasticsearchFieldProjection.of(task, schema);
+        this.timestampFormatter = ElasticsearchOutputPluginDelegate.createTimestampFormatter(task);
+        this.recordBuffer = new ElasticsearchRecordBuffer("records", task, taskIndex);
+    }
+
+    @Override
+    public void add(Page page)
+    {
+        pageReader.setPage(page);
+        List<Column> columns = projection.getColumns();
+        while (pageReader.nextRecord()) {
+            final ObjectNode record = mapper.createObjectNode();
+            recordBytes = 2;
+            for (int i = 0; i < columns.size(); i++) {
+                Column column = columns.get(i);
+                final String fieldName = projection.getFieldName(i);
+                // "name":value,
+                recordBytes += fieldName.length() + 4;
+                if (pageReader.isNull(column)) {
+                    record.putNull(fieldName);
+                    recordBytes += 4;
+                    continue;
+                }
+                column.visit(new ColumnVisitor() {
+                    @Override
+                    public void booleanColumn(Column column)
+                    {
+                        record.put(fieldName, pageReader.getBoolean(column));
+                        recordBytes += 5;
+                    }
+
+                    @Override
+                    public void longColumn(Column column)
+                    {
+                        record.put(fieldName, pageReader.getLong(column));
+                        recordBytes += 20;
+                    }
+
+                    @Override
+                    public void doubleColumn(Column column)
+                    {
+                        record.put(fieldName, pageReader.getDouble(column));
+                        recordBytes += 24;
+                    }
+
+                    @Override
+                    public void stringColumn(Column column)
+                    {
+                        String value = pageReader.getString(column);
+                        record.put(fieldName, value);
+                        recordBytes += value.length() + 2;
+                    }
+
+                    @Override
+                    public void timestampColumn(Column column)
+                    {
+                        String value = timestampFormatter.format(pageReader.getTimestamp(column));
+                        record.put(fieldName, value);
+                        recordBytes += value.length() + 2;
+                    }
+
+                    @Override
+                    public void jsonColumn(Column column)
+                    {
+                        String json = pageReader.getJson(column).toJson();
+                        recordBytes += json.length();
+                        if (rawJson) {
+                            record.putRawValue(fieldName, new RawValue(json));
+                            return;
+                        }
+                        try {
+                            record.set(fieldName, mapper.readTree(json));
+                        }
+                        catch (IOException ex) {
+                            throw new DataException(ex);
+                        }
+                    }
+                });
+            }
+            projection.putConstantFields(record);
+            recordBuffer.bufferJsonRecord(record, recordBytes);
+        }
+        page.release();
+    }
+
+    @Override
+    public void finish()
+    {
+        recordBuffer.finish();
+    }
+
+    @Override
+    public void close()
+    {
+        pageReader.close();
+        recordBuffer.close();
+    }
+
+    @Override
+    public void abort()
+    {
+    }
+
+    @Override
+    public TaskReport commit()
+    {
+        return recordBuffer.commitWithTaskReportUpdated(Exec.newTaskReport());
+    }
+}
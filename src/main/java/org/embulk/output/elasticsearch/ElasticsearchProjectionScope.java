@@ -0,0 +1,106 @@
+package org.embulk.output.elasticsearch;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.embulk.base.restclient.jackson.scope.JacksonObjectScopeBase;
+import org.embulk.base.restclient.record.SinglePageRecordReader;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.embulk.spi.Column;
+import org.embulk.spi.ColumnVisitor;
+import org.embulk.spi.DataException;
+import org.embulk.spi.Schema;
+import org.embulk.spi.time.TimestampFormatter;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * ElasticsearchProjectionScope is a variant of {@code JacksonAllInObjectScope} which writes only the projected columns
+ * of {@code ElasticsearchFieldProjection} under their field names, and then constant fields.
+ */
+public class ElasticsearchProjectionScope
+        extends JacksonObjectScopeBase
+{
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final PluginTask task;
+    private final TimestampFormatter timestampFormatter;
+    private Schema resolvedSchema;
+    private ElasticsearchFieldProjection projection;
+
+    public ElasticsearchProjectionScope(PluginTask task, TimestampFormatter timestampFormatter)
+    {
+        this.task = task;
+        this.timestampFormatter = timestampFormatter;
+    }
+
+    @Override
+    public ObjectNode scopeObject(final SinglePageRecordReader singlePageRecordReader)
+    {
+        final ObjectNode object = mapper.createObjectNode();
+        ElasticsearchFieldProjection projection = getProjection(singlePageRecordReader.getSchema());
+        List<Column> columns = projection.getColumns();
+        for (int i = 0; i < columns.size(); i++) {
+            final Column column = columns.get(i);
+            final String fieldName = projection.getFieldName(i);
+            if (singlePageRecordReader.isNull(column)) {
+                object.putNull(fieldName);
+                continue;
+            }
+            column.visit(new ColumnVisitor() {
+                @Override
+                public void booleanColumn(Column column)
+                {
+                    object.put(fieldName, singlePageRecordReader.getBoolean(column));
+                }
+
+                @Override
+                public void longColumn(Column column)
+                {
+                    object.put(fieldName, singlePageRecordReader.getLong(column));
+                }
+
+                @Override
+                public void doubleColumn(Column column)
+                {
+                    object.put(fieldName, singlePageRecordReader.getDouble(column));
+                }
+
+                @Override
+                public void stringColumn(Column column)
+                {
+                    object.put(fieldName, singlePageRecordReader.getString(column));
+                }
+
+                @Override
+                public void timestampColumn(Column column)
+                {
+                    object.put(fieldName, timestampFormatter.format(singlePageRecordReader.getTimestamp(column)));
+                }
+
+                @Override
+                public void jsonColumn(Column column)
+                {
+                    try {
+                        object.set(fieldName, mapper.readTree(singlePageRecordReader.getJson(column).toJson()));
+                    }
+                    catch (IOException ex) {
+                        throw new DataException(ex);
+                    }
+                }
+            });
+        }
+        projection.putConstantFields(object);
+        return object;
+    }
+
+    // Schema doesn't change within a task. Resolve the projection only for the first record.
+    private synchronized ElasticsearchFieldProjection getProjection(Schema schema)
+    {
+        if (schema != resolvedSchema) {
+            projection = ElasticsearchFieldProjection.of(task, schema);
+            resolvedSchema = schema;
+        }
+        return projection;
+    }
+}
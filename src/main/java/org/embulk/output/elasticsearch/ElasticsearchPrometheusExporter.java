@@ -0,0 +1,102 @@
+package org.embulk.output.elasticsearch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ElasticsearchPrometheusExporter serves {@code ElasticsearchMetrics} at http://{metrics_bind_address}:{metrics_port}/metrics
+ * in Prometheus text format with the HTTP server of JDK.
+ */
+public class ElasticsearchPrometheusExporter
+{
+    private static final String PREFIX = "embulk_output_elasticsearch_";
+
+    private final Logger log;
+    private final ElasticsearchMetrics metrics;
+    private final String bindAddress;
+    private final int port;
+    private HttpServer server;
+
+    public ElasticsearchPrometheusExporter(ElasticsearchMetrics metrics, String bindAddress, int port)
+    {
+        this.log = Exec.getLogger(getClass());
+        this.metrics = metrics;
+        this.bindAddress = bindAddress;
+        this.port = port;
+    }
+
+    public void start()
+    {
+        try {
+            server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+        }
+        catch (IOException ex) {
+            // Metrics must not fail the load
+            log.warn(String.format("Failed to start metrics endpoint on %s:%d", bindAddress, port), ex);
+            return;
+        }
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                byte[] body = format().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+        log.info("Serving metrics at http://{}:{}/metrics", bindAddress, port);
+    }
+
+    public void stop()
+    {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    String format()
+    {
+        StringBuilder sb = new StringBuilder();
+        appendMetric(sb, "records_sent_total", "counter", "Records indexed, counted once per bulk request", metrics.getRecordsSent());
+        appendMetric(sb, "bytes_sent_total", "counter", "Bytes of indexed records, counted once per bulk request", metrics.getBytesSent());
+        appendMetric(sb, "bulk_requests_total", "counter", "Successful bulk requests", metrics.getBulkRequests());
+        appendMetric(sb, "failed_bulk_requests_total", "counter", "Bulk requests failed after retries", metrics.getFailedBulkRequests());
+        appendMetric(sb, "bulk_requests_in_flight", "gauge", "Bulk requests being sent", metrics.getInFlightBulkRequests());
+        appendMetric(sb, "retries_total", "counter", "Retries of requests, rejected bulk items and parked bulk requests", metrics.getRetries());
+        appendMetric(sb, "rejections_total", "counter", "Requests or bulk items rejected by Elasticsearch", metrics.getRejections());
+
+        String name = PREFIX + "bulk_latency_milliseconds";
+        sb.append("# HELP ").append(name).append(" Latency of successful bulk requests including retries\n");
+        sb.append("# TYPE ").append(name).append(" histogram\n");
+        long cumulative = 0;
+        for (int i = 0; i < ElasticsearchMetrics.LATENCY_BUCKETS.length; i++) {
+            cumulative += metrics.getLatencyBucketCount(i);
+            sb.append(name).append("_bucket{le=\"").append(ElasticsearchMetrics.LATENCY_BUCKETS[i]).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += metrics.getLatencyBucketCount(ElasticsearchMetrics.LATENCY_BUCKETS.length);
+        sb.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        sb.append(name).append("_sum ").append(metrics.getLatencySumMillis()).append('\n');
+        sb.append(name).append("_count ").append(cumulative).append('\n');
+        return sb.toString();
+    }
+
+    private static void appendMetric(StringBuilder sb, String name, String type, String help, long value)
+    {
+        sb.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+        sb.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -6,15 +6,21 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.google.common.base.Throwables;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 import org.embulk.base.restclient.jackson.JacksonServiceRecord;
 import org.embulk.base.restclient.record.RecordBuffer;
 import org.embulk.base.restclient.record.ServiceRecord;
 import org.embulk.config.TaskReport;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.Mode;
 import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
 import org.embulk.spi.Exec;
 import org.slf4j.Logger;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * ElasticsearchRecordBuffer is an implementation of {@code RecordBuffer} which includes JSON output directly to Elasticsearch server.
@@ -26,27 +32,61 @@ public class ElasticsearchRecordBuffer
     private final PluginTask task;
     private final long bulkActions;
     private final long bulkSize;
+    private final long flushActions;
+    private final long flushSize;
     private final ElasticsearchHttpClient client;
     private final ObjectMapper mapper;
     private final Logger log;
+    private final String idColumn;
+    private final ElasticsearchIdSlotMap idSlots;
+    private final HashFunction idHashFunction;
+    private final ElasticsearchBulkFileWriter bulkFileWriter;
+    private ElasticsearchBulkScheduler scheduler;
     private long totalCount;
-    private int requestCount;
+    private long deduplicatedCount;
     private long requestBytes;
     private ArrayNode records;
+    private List<Integer> recordSizes;
+    private ElasticsearchHttpClient.EncodedBulk pendingBulk;
 
-    public ElasticsearchRecordBuffer(String attributeName, PluginTask task)
+    public ElasticsearchRecordBuffer(String attributeName, PluginTask task, int taskIndex)
+    {
+        this(attributeName, task, taskIndex, new ElasticsearchHttpClient());
+    }
+
+    ElasticsearchRecordBuffer(String attributeName, PluginTask task, int taskIndex, ElasticsearchHttpClient client)
     {
         this.attributeName = attributeName;
         this.task = task;
         this.bulkActions = task.getBulkActions();
         this.bulkSize = task.getBulkSize();
-        this.client = new ElasticsearchHttpClient();
+        this.client = client;
+        this.scheduler = ElasticsearchBulkScheduler.acquire(task, client);
         this.mapper = new ObjectMapper()
                 .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
                 .configure(com.fasterxml.jackson.core.JsonParser.Feature.ALLOW_UNQUOTED_CONTROL_CHARS, false);
+        // Deduplication window holds records of several bulk requests and sends only the last occurrence of each id
+        if (task.getDeduplicateId()) {
+            int window = Math.max(1, task.getDeduplicateWindow());
+            this.flushActions = bulkActions * window;
+            this.flushSize = bulkSize * window;
+            this.idColumn = task.getId().get();
+            this.idSlots = new ElasticsearchIdSlotMap((int) Math.min(flushActions, 1 << 20));
+            this.idHashFunction = Hashing.murmur3_128();
+        }
+        else {
+            this.flushActions = bulkActions;
+            this.flushSize = bulkSize;
+            this.idColumn = null;
+            this.idSlots = null;
+            this.idHashFunction = null;
+        }
+        this.bulkFileWriter = task.getBulkFileDirectory().isPresent() && task.getMode() != Mode.REPLAY
+                ? new ElasticsearchBulkFileWriter(task, taskIndex) : null;
         this.records = JsonNodeFactory.instance.arrayNode();
+        this.recordSizes = new ArrayList<>();
         this.totalCount = 0;
-        this.requestCount = 0;
+        this.deduplicatedCount = 0;
         this.requestBytes = 0;
         this.log = Exec.getLogger(getClass());
     }
@@ -57,22 +97,9 @@ public class ElasticsearchRecordBuffer
         JacksonServiceRecord jacksonServiceRecord;
         try {
             jacksonServiceRecord = (JacksonServiceRecord) serviceRecord;
-            JsonNode record = mapper.readTree(jacksonServiceRecord.toString()).get("record");
-
-            requestCount++;
-            totalCount++;
-            requestBytes += record.toString().getBytes().length;
-
-            records.add(record);
-            if (requestCount >= bulkActions || requestBytes >= bulkSize) {
-                client.push(records, task);
-                if (totalCount % 10000 == 0) {
-                    log.info("Inserted {} records", totalCount);
-                }
-                records = JsonNodeFactory.instance.arrayNode();
-                requestBytes = 0;
-                requestCount = 0;
-            }
+            String json = jacksonServiceRecord.toString();
+            JsonNode record = mapper.readTree(json).get("record");
+            bufferJsonRecord(record, json.length());
         }
         catch (ClassCastException ex) {
             throw new RuntimeException(ex);
@@ -82,6 +109,112 @@ public class ElasticsearchRecordBuffer
         }
     }
 
+    // Called by ElasticsearchPageOutput with records built from pages directly.
+    // recordBytes is the approximate size of the record in JSON, which is counted against bulk_size.
+    public void bufferJsonRecord(JsonNode record, int recordBytes)
+    {
+        // Documents are read from bulk files in replay mode
+        if (task.getMode() == Mode.REPLAY) {
+            return;
+        }
+        totalCount++;
+        requestBytes += recordBytes;
+
+        if (!replaceDuplicatedRecord(record, recordBytes)) {
+            records.add(record);
+            recordSizes.add(recordBytes);
+        }
+        if (records.size() >= flushActions || requestBytes >= flushSize) {
+            flush();
+            if (totalCount % 10000 == 0) {
+                log.info("Inserted {} records", totalCount);
+            }
+        }
+    }
+
+    // Returns true if the record replaced a buffered record written to the same document
+    private boolean replaceDuplicatedRecord(JsonNode record, int recordBytes)
+    {
+        if (idSlots == null) {
+            return false;
+        }
+        String key = getDocumentKey(record);
+        if (key == null) {
+            return false;
+        }
+        long hash = idHashFunction.hashString(key, StandardCharsets.UTF_8).asLong();
+        int slot = idSlots.get(hash);
+        if (slot >= 0 && key.equals(getDocumentKey(records.get(slot)))) {
+            records.set(slot, record);
+            requestBytes -= recordSizes.set(slot, recordBytes);
+            deduplicatedCount++;
+            return true;
+        }
+        // Different key with the same hash is very unlikely. Keep both records in that case.
+        if (slot < 0) {
+            idSlots.put(hash, records.size());
+        }
+        return false;
+    }
+
+    // index_fields may override _index and _id per record, so the key includes them. Returns null for records without id.
+    private String getDocumentKey(JsonNode record)
+    {
+        if (!task.getIndexFields().isPresent()) {
+            return record.hasNonNull(idColumn) ? record.get(idColumn).asText() : null;
+        }
+        ElasticsearchHttpClient.DocumentKey key = client.getDocumentKey(task, record);
+        return key == null ? null : key.getIndex() + "\n" + key.getType() + "\n" + key.getId();
+    }
+
+    // Sends buffered records split by bulk_actions and bulk_size
+    private void flush()
+    {
+        ArrayNode bulk = JsonNodeFactory.instance.arrayNode();
+        long bulkBytes = 0;
+        for (int i = 0; i < records.size(); i++) {
+            bulk.add(records.get(i));
+            bulkBytes += recordSizes.get(i);
+            if (bulk.size() >= bulkActions || bulkBytes >= bulkSize) {
+                push(bulk);
+                bulk = JsonNodeFactory.instance.arrayNode();
+                bulkBytes = 0;
+            }
+        }
+        if (bulk.size() > 0) {
+            push(bulk);
+        }
+
+        records = JsonNodeFactory.instance.arrayNode();
+        recordSizes = new ArrayList<>();
+        requestBytes = 0;
+        if (idSlots != null) {
+            idSlots.clear();
+        }
+    }
+
+    // With the encoder pool, starts encoding the bulk request and sends the previous one meanwhile. The last bulk request
+    // is sent by sendPendingBulk(). Without the pool, encoding doesn't overlap sending, so the bulk request is sent right away.
+    private void push(ArrayNode bulk)
+    {
+        if (scheduler == null || scheduler.getEncoderPool() == null) {
+            client.push(bulk, task, scheduler, bulkFileWriter);
+            return;
+        }
+        ElasticsearchHttpClient.EncodedBulk encodedBulk = client.encode(bulk, task, scheduler);
+        sendPendingBulk();
+        pendingBulk = encodedBulk;
+    }
+
+    private void sendPendingBulk()
+    {
+        if (pendingBulk != null) {
+            ElasticsearchHttpClient.EncodedBulk bulk = pendingBulk;
+            pendingBulk = null;
+            client.send(bulk, task, scheduler, bulkFileWriter);
+        }
+    }
+
     @Override
     public void finish()
     {
@@ -90,14 +223,27 @@ public class ElasticsearchRecordBuffer
     @Override
     public void close()
     {
+        if (scheduler != null) {
+            ElasticsearchBulkScheduler.release();
+            scheduler = null;
+        }
+        if (bulkFileWriter != null) {
+            bulkFileWriter.close();
+        }
     }
 
     @Override
     public TaskReport commitWithTaskReportUpdated(TaskReport taskReport)
     {
         if (records.size() > 0) {
-            client.push(records, task);
-            log.info("Inserted {} records", records.size());
+            int size = records.size();
+            flush();
+            log.info("Inserted {} records", size);
+        }
+        sendPendingBulk();
+        client.logBulkTraces();
+        if (deduplicatedCount > 0) {
+            log.info("Skipped {} records superseded by later records with the same id", deduplicatedCount);
         }
         return Exec.newTaskReport().set("inserted", totalCount);
     }
@@ -0,0 +1,142 @@
+package org.embulk.output.elasticsearch;
+
+import com.google.common.collect.ImmutableList;
+import org.embulk.config.ConfigException;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.AuthMethod;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.NodeAddressTask;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+
+import javax.xml.bind.DatatypeConverter;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * ElasticsearchRequestTemplate holds the parts of requests which don't change while a task runs,
+ * like base URIs of nodes, the bulk path and the Authorization header, so that they are not rebuilt per request.
+ * When ingest nodes are set, bulk requests are sent to them instead of the configured nodes.
+ */
+public class ElasticsearchRequestTemplate
+{
+    private final PluginTask task;
+    private final List<String> baseUris;
+    private volatile List<String> ingestBaseUris = ImmutableList.of();
+    private final long authRefreshIntervalMillis;
+    private String authorizationHeader;
+    private long authorizationHeaderCreatedMillis;
+    private String bulkIndex;
+    private String bulkPath;
+
+    public ElasticsearchRequestTemplate(PluginTask task)
+    {
+        this.task = task;
+        String protocol = task.getUseSsl() ? "https://" : "http://";
+        ImmutableList.Builder<String> builder = ImmutableList.builder();
+        for (NodeAddressTask node : task.getNodes()) {
+            builder.add(protocol + node.getHost() + ":" + node.getPort());
+        }
+        this.baseUris = builder.build();
+        this.authRefreshIntervalMillis = task.getAuthRefreshIntervalMillis();
+        this.authorizationHeader = createAuthorizationHeader(task);
+        this.authorizationHeaderCreatedMillis = System.currentTimeMillis();
+    }
+
+    public PluginTask getTask()
+    {
+        return task;
+    }
+
+    public void setIngestBaseUris(List<String> ingestBaseUris)
+    {
+        this.ingestBaseUris = ImmutableList.copyOf(ingestBaseUris);
+    }
+
+    // Return node address (Random)
+    public String createRequestUri(String path)
+    {
+        List<String> uris = baseUris;
+        if (!ingestBaseUris.isEmpty() && path.contains("/_bulk")) {
+            uris = ingestBaseUris;
+        }
+        String baseUri = uris.get(ThreadLocalRandom.current().nextInt(uris.size()));
+        if (path.startsWith("/")) {
+            return baseUri + path;
+        }
+        return baseUri + "/" + path;
+    }
+
+    // Index is replaced with a new index name in replace mode, so the path is cached per index name
+    public synchronized String getBulkPath()
+    {
+        String index = task.getIndex();
+        if (!index.equals(bulkIndex)) {
+            bulkIndex = index;
+            // Data streams accept only typeless requests
+            bulkPath = task.getDataStream() ? "/" + index + "/_bulk" : "/" + index + "/" + task.getType() + "/_bulk";
+            if (task.getPipeline().isPresent()) {
+                bulkPath += "?pipeline=" + encode(task.getPipeline().get());
+            }
+        }
+        return bulkPath;
+    }
+
+    // Bearer token read from a file is reloaded periodically so that it can be rotated while loading
+    public synchronized String getAuthorizationHeader()
+    {
+        if (task.getAuthMethod() == AuthMethod.BEARER && task.getBearerTokenFile().isPresent()
+                && System.currentTimeMillis() - authorizationHeaderCreatedMillis >= authRefreshIntervalMillis) {
+            authorizationHeader = createAuthorizationHeader(task);
+            authorizationHeaderCreatedMillis = System.currentTimeMillis();
+        }
+        return authorizationHeader;
+    }
+
+    public static String createAuthorizationHeader(PluginTask task)
+    {
+        switch (task.getAuthMethod()) {
+            case BASIC:
+                String authString = task.getUser().get() + ":" + task.getPassword().get();
+                return "Basic " + DatatypeConverter.printBase64Binary(authString.getBytes());
+            case API_KEY:
+                // api_key can be the encoded key returned by Elasticsearch, or combined with api_key_id
+                if (task.getApiKeyId().isPresent()) {
+                    String apiKey = task.getApiKeyId().get() + ":" + task.getApiKey().get();
+                    return "ApiKey " + DatatypeConverter.printBase64Binary(apiKey.getBytes(StandardCharsets.UTF_8));
+                }
+                return "ApiKey " + task.getApiKey().get();
+            case BEARER:
+                if (task.getBearerTokenFile().isPresent()) {
+                    return "Bearer " + readToken(task.getBearerTokenFile().get());
+                }
+                return "Bearer " + task.getBearerToken().get();
+            default:
+                return "";
+        }
+    }
+
+    private static String encode(String value)
+    {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        }
+        catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);  // UTF-8 is always supported
+        }
+    }
+
+    private static String readToken(String path)
+    {
+        try {
+            return new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8).trim();
+        }
+        catch (IOException ex) {
+            throw new ConfigException(String.format("Failed to read bearer token from '%s'", path), ex);
+        }
+    }
+}
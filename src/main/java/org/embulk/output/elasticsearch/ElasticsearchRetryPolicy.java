@@ -0,0 +1,168 @@
+package org.embulk.output.elasticsearch;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import org.embulk.config.ConfigException;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * ElasticsearchRetryPolicy decides whether and when a failed request is retried.
+ *
+ * Connection errors, rejections (429) and server errors (5xx) have separate retry budgets per request.
+ * The total time spent waiting for retries is also limited per task when {@code retry_time_budget_millis} is set.
+ */
+public class ElasticsearchRetryPolicy
+{
+    public enum FailureType
+    {
+        CONNECTION,
+        REJECTED,
+        SERVER_ERROR
+    }
+
+    public enum Backoff
+    {
+        EXPONENTIAL,
+        DECORRELATED_JITTER;
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+
+        @JsonCreator
+        public static Backoff fromString(String value)
+        {
+            switch (value) {
+                case "exponential":
+                    return EXPONENTIAL;
+                case "decorrelated_jitter":
+                    return DECORRELATED_JITTER;
+                default:
+                    throw new ConfigException(String.format("Unknown retry_backoff '%s'. Supported retry_backoff are exponential, decorrelated_jitter", value));
+            }
+        }
+    }
+
+    /**
+     * RetryState holds retry counts of a single request.
+     */
+    public static class RetryState
+    {
+        private int connectionRetries = 0;
+        private int rejectedRetries = 0;
+        private int serverErrorRetries = 0;
+        private long previousIntervalMillis = 0;
+
+        public int getRetries()
+        {
+            return connectionRetries + rejectedRetries + serverErrorRetries;
+        }
+    }
+
+    private final Backoff backoff;
+    private final long initialIntervalMillis;
+    private final long maximumIntervalMillis;
+    private final int maximumConnectionRetries;
+    private final int maximumRejectedRetries;
+    private final int maximumServerErrorRetries;
+    private final long timeBudgetMillis;
+    private long retriedMillis;
+
+    public ElasticsearchRetryPolicy(PluginTask task)
+    {
+        this(task.getRetryBackoff(),
+                task.getInitialRetryIntervalMillis(),
+                task.getMaximumRetryIntervalMillis(),
+                task.getMaximumConnectionRetries().or(task.getMaximumRetries()),
+                task.getMaximumRejectedRetries().or(task.getMaximumRetries()),
+                task.getMaximumServerErrorRetries().or(task.getMaximumRetries()),
+                task.getRetryTimeBudgetMillis().or(0L));
+    }
+
+    public ElasticsearchRetryPolicy(Backoff backoff, long initialIntervalMillis, long maximumIntervalMillis,
+                                    int maximumConnectionRetries, int maximumRejectedRetries, int maximumServerErrorRetries,
+                                    long timeBudgetMillis)
+    {
+        this.backoff = backoff;
+        this.initialIntervalMillis = initialIntervalMillis;
+        this.maximumIntervalMillis = maximumIntervalMillis;
+        this.maximumConnectionRetries = maximumConnectionRetries;
+        this.maximumRejectedRetries = maximumRejectedRetries;
+        this.maximumServerErrorRetries = maximumServerErrorRetries;
+        this.timeBudgetMillis = timeBudgetMillis;
+        this.retriedMillis = 0;
+    }
+
+    public RetryState newRetryState()
+    {
+        return new RetryState();
+    }
+
+    // Returns interval in milliseconds before next retry, or -1 if the request should give up.
+    // retryAfterMillis is taken from Retry-After header. Set -1 if not available.
+    public synchronized long nextRetryIntervalMillis(RetryState state, FailureType type, long retryAfterMillis)
+    {
+        switch (type) {
+            case CONNECTION:
+                if (state.connectionRetries++ >= maximumConnectionRetries) {
+                    return -1;
+                }
+                break;
+            case REJECTED:
+                if (state.rejectedRetries++ >= maximumRejectedRetries) {
+                    return -1;
+                }
+                break;
+            default:
+                if (state.serverErrorRetries++ >= maximumServerErrorRetries) {
+                    return -1;
+                }
+                break;
+        }
+
+        long interval;
+        if (backoff == Backoff.EXPONENTIAL) {
+            interval = Math.min(initialIntervalMillis << Math.min(state.getRetries() - 1, 30), maximumIntervalMillis);
+        }
+        else {
+            // "Decorrelated jitter": sleep = min(cap, random_between(base, previous_sleep * 3))
+            long upper = Math.max(initialIntervalMillis, state.previousIntervalMillis * 3);
+            interval = Math.min(maximumIntervalMillis, initialIntervalMillis + nextLong(upper - initialIntervalMillis + 1));
+        }
+        if (retryAfterMillis > interval) {
+            interval = retryAfterMillis;
+        }
+        state.previousIntervalMillis = interval;
+
+        if (timeBudgetMillis > 0 && retriedMillis + interval > timeBudgetMillis) {
+            return -1;
+        }
+        retriedMillis += interval;
+        return interval;
+    }
+
+    private static long nextLong(long bound)
+    {
+        return bound <= 1 ? 0 : (long) (ThreadLocalRandom.current().nextDouble() * bound);
+    }
+
+    // Supports delta-seconds form of Retry-After header. HTTP-date form is ignored.
+    public static long parseRetryAfterMillis(String header)
+    {
+        if (header == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(header.trim()) * 1000;
+        }
+        catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.embulk.output.elasticsearch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ElasticsearchRolloverManager calls _rollover of the target alias or data stream between bulk requests of all tasks in the JVM.
+ * It is owned by {@code ElasticsearchBulkScheduler}, so that tasks don't roll over the same target at the same time.
+ */
+public class ElasticsearchRolloverManager
+{
+    private final Logger log;
+    private final PluginTask task;
+    private final ElasticsearchHttpClient client;
+    private final ObjectNode conditions;
+    private final int checkInterval;
+    private final AtomicLong bulkCount;
+    private final ReentrantLock lock;
+
+    public ElasticsearchRolloverManager(PluginTask task)
+    {
+        this.log = Exec.getLogger(getClass());
+        this.task = task;
+        // Use own client not to consume retry time budget of tasks
+        this.client = new ElasticsearchHttpClient();
+        this.conditions = createConditions(task);
+        this.checkInterval = Math.max(1, task.getRolloverCheckInterval());
+        this.bulkCount = new AtomicLong();
+        this.lock = new ReentrantLock();
+    }
+
+    public static boolean isEnabled(PluginTask task)
+    {
+        return task.getRolloverMaxDocs().isPresent() || task.getRolloverMaxSize().isPresent();
+    }
+
+    static ObjectNode createConditions(PluginTask task)
+    {
+        // {"max_docs" : 100000000, "max_size" : "50gb"}
+        ObjectNode conditions = new ObjectMapper().createObjectNode();
+        if (task.getRolloverMaxDocs().isPresent()) {
+            conditions.put("max_docs", task.getRolloverMaxDocs().get());
+        }
+        if (task.getRolloverMaxSize().isPresent()) {
+            conditions.put("max_size", task.getRolloverMaxSize().get());
+        }
+        return conditions;
+    }
+
+    // Called after each bulk request. Checks the conditions every rollover_check_interval bulk requests.
+    public void onBulkSent()
+    {
+        if (bulkCount.incrementAndGet() % checkInterval != 0) {
+            return;
+        }
+        // Another task is checking the conditions. It's enough to check once.
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            JsonNode response = client.rollover(task.getIndex(), task, conditions);
+            if (response.path("rolled_over").asBoolean(false)) {
+                log.info("Rolled over [{}] from index [{}] to [{}]", task.getIndex(),
+                        response.path("old_index").asText(), response.path("new_index").asText());
+            }
+        }
+        catch (RuntimeException ex) {
+            // Writes still go to the current write index. The conditions are checked again later.
+            log.warn(String.format("Failed to roll over [%s]", task.getIndex()), ex);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.embulk.output.elasticsearch;
+
+import com.google.common.base.Throwables;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+
+import javax.net.ssl.SSLContext;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * ElasticsearchSslContext holds one {@code SslContextFactory} per TLS configuration in the JVM.
+ *
+ * All HTTP clients with the same TLS options share the same SSLContext, so TLS sessions are cached once and resumed
+ * by later connections instead of paying a full handshake per client. Transactions with different TLS options
+ * in the same JVM (e.g. embedded Embulk) get their own factories.
+ */
+public class ElasticsearchSslContext
+{
+    // AES-GCM and ChaCha20-Poly1305 suites are moved ahead of the other suites enabled by default in the JVM
+    private static final String[] PREFERRED_CIPHER_SUITES = {
+        "TLS_AES_.*_GCM_.*",
+        "TLS_CHACHA20_POLY1305_.*",
+        "TLS_ECDHE_.*_WITH_AES_(128|256)_GCM_.*",
+        "TLS_ECDHE_.*_WITH_CHACHA20_POLY1305_.*",
+        "TLS_DHE_.*_WITH_AES_(128|256)_GCM_.*"
+    };
+
+    private static final Map<List<Object>, SslContextFactory> sslContextFactories = new HashMap<>();
+
+    private ElasticsearchSslContext()
+    {
+    }
+
+    // Started here, so HttpClient adds it as an unmanaged bean and doesn't stop it when the client stops
+    public static synchronized SslContextFactory getSslContextFactory(PluginTask task)
+    {
+        List<Object> key = createKey(task);
+        SslContextFactory factory = sslContextFactories.get(key);
+        if (factory == null) {
+            factory = createSslContextFactory(task);
+            try {
+                factory.start();
+            }
+            catch (Exception ex) {
+                throw Throwables.propagate(ex);
+            }
+            sslContextFactories.put(key, factory);
+        }
+        return factory;
+    }
+
+    // All options used by createSslContextFactory
+    static List<Object> createKey(PluginTask task)
+    {
+        return Arrays.<Object>asList(
+                task.getSslTruststorePath().orNull(), task.getSslTruststoreType(), task.getSslTruststorePassword().orNull(),
+                task.getSslKeystorePath().orNull(), task.getSslKeystoreType(), task.getSslKeystorePassword().orNull(),
+                task.getSslVerifyHostname(), task.getSslProtocols().orNull(), task.getSslCipherSuites().orNull(),
+                task.getSslSessionCacheSize());
+    }
+
+    private static SslContextFactory createSslContextFactory(PluginTask task)
+    {
+        SslContextFactory factory = new SslContextFactory();
+
+        // Trust any certificate unless truststore is given, as this plugin has done so far
+        if (task.getSslTruststorePath().isPresent()) {
+            factory.setTrustAll(false);
+            factory.setTrustStorePath(task.getSslTruststorePath().get());
+            factory.setTrustStoreType(task.getSslTruststoreType());
+            if (task.getSslTruststorePassword().isPresent()) {
+                factory.setTrustStorePassword(task.getSslTruststorePassword().get());
+            }
+        }
+        else {
+            factory.setTrustAll(true);
+        }
+        if (task.getSslVerifyHostname()) {
+            factory.setEndpointIdentificationAlgorithm("HTTPS");
+        }
+
+        // Keystore is used for client certificate authentication
+        if (task.getSslKeystorePath().isPresent()) {
+            factory.setKeyStorePath(task.getSslKeystorePath().get());
+            factory.setKeyStoreType(task.getSslKeystoreType());
+            if (task.getSslKeystorePassword().isPresent()) {
+                factory.setKeyStorePassword(task.getSslKeystorePassword().get());
+            }
+        }
+
+        if (task.getSslProtocols().isPresent()) {
+            factory.setIncludeProtocols(toArray(task.getSslProtocols().get()));
+        }
+        if (task.getSslCipherSuites().isPresent()) {
+            factory.setIncludeCipherSuites(toArray(task.getSslCipherSuites().get()));
+        }
+        else {
+            // Jetty matches include patterns against all suites supported by the JVM, including NULL and anonymous suites.
+            // Only the suites enabled by default are listed by name, and Jetty's default excludes still apply.
+            factory.setIncludeCipherSuites(orderCipherSuites(getDefaultCipherSuites()));
+        }
+
+        factory.setSessionCachingEnabled(true);
+        factory.setSslSessionCacheSize(task.getSslSessionCacheSize());
+        return factory;
+    }
+
+    private static String[] getDefaultCipherSuites()
+    {
+        try {
+            return SSLContext.getDefault().getDefaultSSLParameters().getCipherSuites();
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    // Returns the given suites with preferred ones first. Other suites keep their order.
+    static String[] orderCipherSuites(String[] cipherSuites)
+    {
+        Set<String> ordered = new LinkedHashSet<>();
+        for (String pattern : PREFERRED_CIPHER_SUITES) {
+            for (String cipherSuite : cipherSuites) {
+                if (cipherSuite.matches(pattern)) {
+                    ordered.add(cipherSuite);
+                }
+            }
+        }
+        ordered.addAll(Arrays.asList(cipherSuites));
+        return ordered.toArray(new String[ordered.size()]);
+    }
+
+    private static String[] toArray(List<String> values)
+    {
+        return values.toArray(new String[values.size()]);
+    }
+}
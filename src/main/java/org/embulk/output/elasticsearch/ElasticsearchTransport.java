@@ -0,0 +1,45 @@
+package org.embulk.output.elasticsearch;
+
+import org.eclipse.jetty.http.HttpMethod;
+
+/**
+ * ElasticsearchTransport sends a single HTTP request to Elasticsearch.
+ *
+ * Implementations don't retry. Retries are handled by {@code ElasticsearchHttpClient} with {@code ElasticsearchRetryPolicy}.
+ * Implementations must be thread-safe because one transport is shared by all tasks through {@code ElasticsearchBulkScheduler}.
+ */
+public interface ElasticsearchTransport
+        extends AutoCloseable
+{
+    // Returns response body of 2xx response. Throws ResponseException for other responses,
+    // and other RuntimeException when the request could not be sent or the response could not be read.
+    String send(HttpMethod method, String uri, String authorizationHeader, byte[] content, String contentType);
+
+    @Override
+    void close();
+
+    class ResponseException
+            extends RuntimeException
+    {
+        private final int status;
+        private final String retryAfter;
+
+        public ResponseException(int status, String retryAfter, String message, Throwable cause)
+        {
+            super(message, cause);
+            this.status = status;
+            this.retryAfter = retryAfter;
+        }
+
+        public int getStatus()
+        {
+            return status;
+        }
+
+        // Value of Retry-After header, or null
+        public String getRetryAfter()
+        {
+            return retryAfter;
+        }
+    }
+}
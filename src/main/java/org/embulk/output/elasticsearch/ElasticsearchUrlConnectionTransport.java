@@ -0,0 +1,103 @@
+package org.embulk.output.elasticsearch;
+
+import com.google.common.io.ByteStreams;
+import org.eclipse.jetty.http.HttpMethod;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ElasticsearchUrlConnectionTransport is an implementation of {@code ElasticsearchTransport} with {@code HttpURLConnection} of JDK.
+ *
+ * JDK keeps connections alive and reuses them per host while response bodies are read to the end.
+ */
+public class ElasticsearchUrlConnectionTransport
+        implements ElasticsearchTransport
+{
+    private final PluginTask task;
+    private final SSLSocketFactory sslSocketFactory;
+
+    public ElasticsearchUrlConnectionTransport(PluginTask task)
+    {
+        this.task = task;
+        // Share SSLContext with Jetty transport so that TLS sessions are resumed in the same way
+        this.sslSocketFactory = task.getUseSsl() ? ElasticsearchSslContext.getSslContextFactory(task).getSslContext().getSocketFactory() : null;
+    }
+
+    @Override
+    public String send(HttpMethod method, String uri, String authorizationHeader, byte[] content, String contentType)
+    {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(uri).openConnection();
+            if (connection instanceof HttpsURLConnection) {
+                HttpsURLConnection httpsConnection = (HttpsURLConnection) connection;
+                httpsConnection.setSSLSocketFactory(sslSocketFactory);
+                if (!task.getSslVerifyHostname()) {
+                    httpsConnection.setHostnameVerifier(new HostnameVerifier() {
+                        @Override
+                        public boolean verify(String hostname, SSLSession session)
+                        {
+                            return true;
+                        }
+                    });
+                }
+            }
+            connection.setRequestMethod(method.asString());
+            connection.setConnectTimeout((int) task.getConnectTimeoutMillis());
+            connection.setReadTimeout(task.getTimeoutMills());
+            connection.setRequestProperty("Accept", "application/json");
+            if (!authorizationHeader.isEmpty()) {
+                connection.setRequestProperty("Authorization", authorizationHeader);
+            }
+            if (method == HttpMethod.POST || content.length > 0) {
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", contentType);
+                connection.setFixedLengthStreamingMode(content.length);
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(content);
+                }
+            }
+
+            int status = connection.getResponseCode();
+            String body = readBody(status / 100 == 2 ? connection.getInputStream() : connection.getErrorStream());
+            if (status / 100 != 2) {
+                throw new ResponseException(status, connection.getHeaderField("Retry-After"),
+                        String.format("Response not 2xx: %d %s %s", status, connection.getResponseMessage(), body), null);
+            }
+            return body;
+        }
+        catch (IOException ex) {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            throw new RuntimeException(ex);
+        }
+    }
+
+    // Reads to the end so that JDK can reuse the connection
+    private String readBody(InputStream in) throws IOException
+    {
+        if (in == null) {
+            return "";
+        }
+        try (InputStream stream = in) {
+            return new String(ByteStreams.toByteArray(stream), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
@@ -105,6 +105,15 @@ public class ElasticsearchTestUtils
                 .set("maximum_retries", 2);
     }
 
+    // Config for tests which don't connect to Elasticsearch. Doesn't require initializeConstant().
+    public ConfigSource offlineConfig()
+    {
+        return Exec.newConfigSource()
+                .set("nodes", ImmutableList.of(ImmutableMap.of("host", "localhost")))
+                .set("index", "index")
+                .set("index_type", "type");
+    }
+
     public ConfigSource overridedIDConfig()
     {
         return config()
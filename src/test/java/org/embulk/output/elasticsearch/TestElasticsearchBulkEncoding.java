@@ -0,0 +1,167 @@
+package org.embulk.output.elasticsearch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.util.RawValue;
+import com.google.common.collect.ImmutableList;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.output.elasticsearch.ElasticsearchHttpClient.DocumentKey;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.embulk.spi.DataException;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class TestElasticsearchBulkEncoding
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private final ElasticsearchTestUtils utils = new ElasticsearchTestUtils();
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private ArrayNode records(String... json) throws Exception
+    {
+        ArrayNode records = mapper.createArrayNode();
+        for (String record : json) {
+            records.add(mapper.readTree(record));
+        }
+        return records;
+    }
+
+    // Encodes records by the calling thread
+    private ElasticsearchHttpClient.EncodedBulk encode(PluginTask task, ArrayNode records)
+    {
+        ForkJoinPool callingThread = null;
+        return new ElasticsearchHttpClient().encode(records, task, callingThread);
+    }
+
+    private String[] lines(byte[] action)
+    {
+        return new String(action, StandardCharsets.UTF_8).split("\n");
+    }
+
+    @Test
+    public void testDocumentKeyFromIndexFields() throws Exception
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("id", "id")
+                .set("index_fields", ImmutableList.of("_id", "_index"))
+                .set("skip_unchanged", true)
+                .loadConfig(PluginTask.class);
+        ElasticsearchHttpClient.EncodedBulk bulk = encode(task,
+                records("{\"id\":1,\"_id\":\"a\",\"_index\":\"other\",\"name\":\"x\"}", "{\"id\":2,\"name\":\"y\"}"));
+        List<byte[]> actions = bulk.getActions();
+        DocumentKey[] documentKeys = bulk.getDocumentKeys();
+        String[] contentHashes = bulk.getContentHashes();
+
+        // index_fields are read before they are removed from the document
+        assertThat(documentKeys[0].getId(), is("a"));
+        assertThat(documentKeys[0].getIndex(), is("other"));
+        assertThat(documentKeys[0].getType(), is("type"));
+        JsonNode metadata = mapper.readTree(lines(actions.get(0))[0]).get("index");
+        assertThat(metadata.get("_id").asText(), is("a"));
+        JsonNode source = mapper.readTree(lines(actions.get(0))[1]);
+        assertThat(source.has("_id"), is(false));
+        assertThat(source.has("_index"), is(false));
+        assertThat(source.get("embulk_content_hash").asText(), is(contentHashes[0]));
+
+        // Documents without _id are not looked up
+        assertThat(documentKeys[1] == null, is(true));
+    }
+
+    @Test
+    public void testJsonArrayFieldsAreCopiedAsRawJson() throws Exception
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("json_array_fields", ImmutableList.of("tags"))
+                .loadConfig(PluginTask.class);
+        List<byte[]> actions = encode(task, records("{\"tags\":\"[1, \\\"a\\\", {\\\"k\\\": null}]\"}")).getActions();
+
+        // The string is written as it is, without being parsed into a tree and serialized again
+        assertThat(lines(actions.get(0))[1], is("{\"tags\":[1, \"a\", {\"k\": null}]}"));
+    }
+
+    @Test
+    public void testMultiLineJsonArrayFieldIsCompacted() throws Exception
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("json_array_fields", ImmutableList.of("tags"))
+                .set("validate_json_array_fields", false)
+                .loadConfig(PluginTask.class);
+        List<byte[]> actions = encode(task, records("{\"tags\":\"[\\n  1,\\r\\n  \\\"a\\\"\\n]\"}")).getActions();
+
+        // An action is still a metadata line and a source line
+        String[] lines = lines(actions.get(0));
+        assertThat(lines.length, is(2));
+        assertThat(lines[1], is("{\"tags\":[1,\"a\"]}"));
+    }
+
+    @Test(expected = DataException.class)
+    public void testInvalidJsonArrayField() throws Exception
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("json_array_fields", ImmutableList.of("tags"))
+                .loadConfig(PluginTask.class);
+        encode(task, records("{\"tags\":\"[1, 2\"}")).getActions();
+    }
+
+    @Test
+    public void testRawJsonColumnIsWrittenAsIs() throws Exception
+    {
+        PluginTask task = utils.offlineConfig()
+                .loadConfig(PluginTask.class);
+        ArrayNode records = mapper.createArrayNode();
+        // ElasticsearchPageOutput puts JSON columns as raw values
+        records.addObject().put("name", "x").putRawValue("json", new RawValue("{\"k\":[1,2]}"));
+        List<byte[]> actions = encode(task, records).getActions();
+
+        assertThat(lines(actions.get(0))[1], is("{\"name\":\"x\",\"json\":{\"k\":[1,2]}}"));
+    }
+
+    @Test
+    public void testEncodeOnPoolKeepsOrder() throws Exception
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("id", "id")
+                .loadConfig(PluginTask.class);
+        ArrayNode records = mapper.createArrayNode();
+        for (int i = 0; i < 1000; i++) {
+            records.add(mapper.createObjectNode().put("id", i));
+        }
+        ForkJoinPool encoderPool = new ForkJoinPool(4);
+        try {
+            List<byte[]> actions = new ElasticsearchHttpClient().encode(records, task, encoderPool).getActions();
+            List<byte[]> expected = encode(task, records).getActions();
+            assertThat(actions.size(), is(1000));
+            for (int i = 0; i < 1000; i++) {
+                assertThat(new String(actions.get(i), StandardCharsets.UTF_8), is(new String(expected.get(i), StandardCharsets.UTF_8)));
+            }
+        }
+        finally {
+            encoderPool.shutdown();
+        }
+    }
+
+    @Test(expected = DataException.class)
+    public void testEncodeOnPoolRethrowsError() throws Exception
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("json_array_fields", ImmutableList.of("tags"))
+                .loadConfig(PluginTask.class);
+        ForkJoinPool encoderPool = new ForkJoinPool(2);
+        try {
+            new ElasticsearchHttpClient().encode(records("{\"tags\":\"[1, 2\"}"), task, encoderPool).getActions();
+        }
+        finally {
+            encoderPool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package org.embulk.output.elasticsearch;
+
+import org.eclipse.jetty.http.HttpMethod;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.embulk.spi.DataException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class TestElasticsearchBulkFileReplayer
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ElasticsearchTestUtils utils = new ElasticsearchTestUtils();
+
+    private static final String ACTION1 = "{\"index\":{\"_id\":\"1\"}}\n{\"k\":\"v1\"}\n";
+    private static final String ACTION2 = "{\"index\":{\"_id\":\"2\"}}\n{\"k\":\"v2\"}\n";
+    private static final String ACTION3 = "{\"index\":{\"_id\":\"3\"}}\n{\"k\":\"v3\"}\n";
+
+    // Client keeping bodies of bulk requests instead of sending them
+    private static class CapturingClient
+            extends ElasticsearchHttpClient
+    {
+        private final List<String> bodies = new ArrayList<>();
+
+        @Override
+        ElasticsearchTransport createTransport(PluginTask task)
+        {
+            return new ElasticsearchTransport()
+            {
+                @Override
+                public String send(HttpMethod method, String uri, String authorizationHeader, byte[] content, String contentType)
+                {
+                    synchronized (bodies) {
+                        bodies.add(new String(content, StandardCharsets.UTF_8));
+                    }
+                    return "{\"took\":1,\"errors\":false,\"items\":[]}";
+                }
+
+                @Override
+                public void close()
+                {
+                }
+            };
+        }
+    }
+
+    // One request at a time, so bodies are in the order of actions
+    private ConfigSource config()
+    {
+        return utils.offlineConfig()
+                .set("mode", "replay")
+                .set("bulk_file_directory", folder.getRoot().getPath())
+                .set("concurrent_requests", 1);
+    }
+
+    private void writeFile(String name, String content) throws Exception
+    {
+        Files.write(new File(folder.getRoot(), name).toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testPairActionAndSourceLines() throws Exception
+    {
+        // Blank lines between actions are skipped
+        writeFile("a.ndjson", ACTION1 + "\n" + ACTION2 + ACTION3);
+        PluginTask task = config().set("bulk_actions", 2).loadConfig(PluginTask.class);
+        CapturingClient client = new CapturingClient();
+
+        assertThat(new ElasticsearchBulkFileReplayer(task, client).replay(), is(3L));
+        assertThat(client.bodies.size(), is(2));
+        assertThat(client.bodies.get(0), is(ACTION1 + ACTION2));
+        assertThat(client.bodies.get(1), is(ACTION3));
+    }
+
+    @Test
+    public void testGzipFilesInOrderOfNames() throws Exception
+    {
+        PluginTask writerTask = utils.offlineConfig()
+                .set("bulk_file_directory", folder.getRoot().getPath())
+                .set("bulk_file_max_bytes", 10)
+                .set("bulk_file_compression", "gzip")
+                .loadConfig(PluginTask.class);
+        try (ElasticsearchBulkFileWriter writer = new ElasticsearchBulkFileWriter(writerTask, 0)) {
+            writer.write(ACTION1.getBytes(StandardCharsets.UTF_8));
+            writer.write(ACTION2.getBytes(StandardCharsets.UTF_8));
+        }
+        PluginTask task = config().loadConfig(PluginTask.class);
+        CapturingClient client = new CapturingClient();
+
+        // Actions are grouped per file
+        assertThat(new ElasticsearchBulkFileReplayer(task, client).replay(), is(2L));
+        assertThat(client.bodies.size(), is(2));
+        assertThat(client.bodies.get(0), is(ACTION1));
+        assertThat(client.bodies.get(1), is(ACTION2));
+    }
+
+    @Test
+    public void testRegroupByBulkSize() throws Exception
+    {
+        writeFile("a.ndjson", ACTION1 + ACTION2 + ACTION3);
+        PluginTask task = config().set("bulk_size", ACTION1.length()).loadConfig(PluginTask.class);
+        CapturingClient client = new CapturingClient();
+
+        assertThat(new ElasticsearchBulkFileReplayer(task, client).replay(), is(3L));
+        assertThat(client.bodies.size(), is(3));
+        assertThat(client.bodies.get(2), is(ACTION3));
+    }
+
+    @Test(expected = DataException.class)
+    public void testActionWithoutSource() throws Exception
+    {
+        writeFile("a.ndjson", ACTION1 + "{\"index\":{\"_id\":\"2\"}}\n");
+        PluginTask task = config().loadConfig(PluginTask.class);
+        new ElasticsearchBulkFileReplayer(task, new CapturingClient()).replay();
+    }
+
+    @Test
+    public void testNoFiles()
+    {
+        PluginTask task = config().loadConfig(PluginTask.class);
+        CapturingClient client = new CapturingClient();
+        assertThat(new ElasticsearchBulkFileReplayer(task, client).replay(), is(0L));
+        assertThat(client.bodies.isEmpty(), is(true));
+    }
+}
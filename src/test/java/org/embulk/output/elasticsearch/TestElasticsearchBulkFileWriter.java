@@ -0,0 +1,59 @@
+package org.embulk.output.elasticsearch;
+
+import com.google.common.io.ByteStreams;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class TestElasticsearchBulkFileWriter
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ElasticsearchTestUtils utils = new ElasticsearchTestUtils();
+
+    @Test
+    public void testRollingGzipFiles() throws Exception
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("bulk_file_directory", folder.getRoot().getPath())
+                .set("bulk_file_max_bytes", 10)
+                .set("bulk_file_compression", "gzip")
+                .loadConfig(PluginTask.class);
+        String body1 = "{\"index\" : {}}\n{\"k\":\"v1\"}\n";
+        String body2 = "{\"index\" : {}}\n{\"k\":\"v2\"}\n";
+        try (ElasticsearchBulkFileWriter writer = new ElasticsearchBulkFileWriter(task, 0)) {
+            writer.write(body1.getBytes(StandardCharsets.UTF_8));
+            writer.write(body2.getBytes(StandardCharsets.UTF_8));
+        }
+
+        File[] files = folder.getRoot().listFiles();
+        Arrays.sort(files);
+        assertThat(files.length, is(2));
+        assertThat(files[0].getName().endsWith(".00000.ndjson.gz"), is(true));
+        assertThat(read(files[0]), is(body1));
+        assertThat(read(files[1]), is(body2));
+    }
+
+    private String read(File file) throws Exception
+    {
+        try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+            return new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.embulk.output.elasticsearch;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.eclipse.jetty.http.HttpMethod;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class TestElasticsearchBulkTracer
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private final ElasticsearchTestUtils utils = new ElasticsearchTestUtils();
+
+    private ElasticsearchBulkTrace record(ElasticsearchBulkTracer tracer, long httpMillis)
+    {
+        ElasticsearchBulkTrace trace = tracer.newTrace(1);
+        trace.addHttpMillis(httpMillis);
+        tracer.record(trace);
+        return trace;
+    }
+
+    @Test
+    public void testRingBufferKeepsRecentTraces()
+    {
+        PluginTask task = utils.offlineConfig().set("bulk_trace_size", 3).loadConfig(PluginTask.class);
+        ElasticsearchBulkTracer tracer = new ElasticsearchBulkTracer(task);
+        for (int i = 0; i < 5; i++) {
+            record(tracer, 10);
+        }
+        List<ElasticsearchBulkTrace> traces = tracer.getRecentTraces();
+        assertThat(traces.size(), is(3));
+        assertThat(traces.get(0).getSequence(), is(2L));
+        assertThat(traces.get(2).getSequence(), is(4L));
+    }
+
+    @Test
+    public void testSlowestTraces()
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("bulk_trace_size", 1)
+                .set("bulk_trace_slowest", 2)
+                .loadConfig(PluginTask.class);
+        ElasticsearchBulkTracer tracer = new ElasticsearchBulkTracer(task);
+        record(tracer, 10);
+        record(tracer, 50);
+        record(tracer, 30);
+        record(tracer, 40);
+        List<ElasticsearchBulkTrace> traces = tracer.getSlowestTraces();
+        assertThat(traces.size(), is(2));
+        assertThat(traces.get(0).getTotalMillis(), is(50L));
+        assertThat(traces.get(1).getTotalMillis(), is(40L));
+    }
+
+    @Test
+    public void testSlowThreshold()
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("bulk_trace_size", 1)
+                .set("bulk_trace_slow_threshold_millis", 30)
+                .loadConfig(PluginTask.class);
+        ElasticsearchBulkTracer tracer = new ElasticsearchBulkTracer(task);
+        assertThat(tracer.isSlow(record(tracer, 30)), is(true));
+        assertThat(tracer.isSlow(record(tracer, 29)), is(false));
+
+        PluginTask noThreshold = utils.offlineConfig().set("bulk_trace_size", 1).loadConfig(PluginTask.class);
+        ElasticsearchBulkTracer noThresholdTracer = new ElasticsearchBulkTracer(noThreshold);
+        assertThat(noThresholdTracer.isSlow(record(noThresholdTracer, 100000)), is(false));
+    }
+
+    @Test
+    public void testBytesOfOriginalBodyWithRetriedItems() throws Exception
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("bulk_trace_size", 1)
+                .set("initial_retry_interval_millis", 1)
+                .loadConfig(PluginTask.class);
+        final List<byte[]> bodies = new ArrayList<>();
+        // The first item is rejected once and sent again by itself
+        ElasticsearchHttpClient client = new ElasticsearchHttpClient()
+        {
+            @Override
+            ElasticsearchTransport createTransport(PluginTask task)
+            {
+                return new ElasticsearchTransport()
+                {
+                    @Override
+                    public String send(HttpMethod method, String uri, String authorizationHeader, byte[] content, String contentType)
+                    {
+                        bodies.add(content);
+                        if (bodies.size() == 1) {
+                            return "{\"took\":1,\"errors\":true,\"items\":[{\"index\":{\"status\":429}},{\"index\":{\"status\":201}}]}";
+                        }
+                        return "{\"took\":1,\"errors\":false,\"items\":[{\"index\":{\"status\":201}}]}";
+                    }
+
+                    @Override
+                    public void close()
+                    {
+                    }
+                };
+            }
+        };
+        ObjectMapper mapper = new ObjectMapper();
+        client.push(mapper.readTree("[{\"k\":\"v1\"},{\"k\":\"v2\"}]"), task);
+
+        assertThat(bodies.size(), is(2));
+        ElasticsearchBulkTrace trace = client.getBulkTracer(task).getRecentTraces().get(0);
+        assertThat(trace.getDocuments(), is(2));
+        assertThat(trace.getBytes(), is((long) bodies.get(0).length));
+        assertThat(trace.getRetries(), is(1));
+    }
+}
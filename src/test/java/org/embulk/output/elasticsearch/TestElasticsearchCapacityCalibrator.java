@@ -0,0 +1,49 @@
+package org.embulk.output.elasticsearch;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class TestElasticsearchCapacityCalibrator
+{
+    @Test
+    public void testChooseSmallestBulkActionsCloseToBest()
+    {
+        int[] bulkActions = {100, 500, 1000, 2500, 5000};
+        double[] documentsPerSecond = {2000, 8000, 9500, 10000, 9800};
+        assertThat(ElasticsearchCapacityCalibrator.chooseBulkActions(bulkActions, documentsPerSecond), is(1000));
+    }
+
+    @Test
+    public void testChooseIgnoresSkippedCandidates()
+    {
+        int[] bulkActions = {100, 500, 1000, 2500, 5000};
+        double[] documentsPerSecond = {2000, 8000, 0, 0, 0};
+        assertThat(ElasticsearchCapacityCalibrator.chooseBulkActions(bulkActions, documentsPerSecond), is(500));
+    }
+
+    @Test
+    public void testRecommendBulkSize()
+    {
+        assertThat(ElasticsearchCapacityCalibrator.recommendBulkSize(100, 100, 100 * 1024 * 1024), is(1024L * 1024));
+        assertThat(ElasticsearchCapacityCalibrator.recommendBulkSize(5000, 2000, 100 * 1024 * 1024), is(20000000L));
+        assertThat(ElasticsearchCapacityCalibrator.recommendBulkSize(5000, 2000, 10 * 1024 * 1024), is(5L * 1024 * 1024));
+    }
+
+    @Test
+    public void testRecommendConcurrentRequests()
+    {
+        assertThat(ElasticsearchCapacityCalibrator.recommendConcurrentRequests(24, 6, 3), is(4));
+        assertThat(ElasticsearchCapacityCalibrator.recommendConcurrentRequests(4, 10, 1), is(1));
+    }
+
+    @Test
+    public void testRecommendConcurrentRequestsWithFewerPrimariesThanDataNodes()
+    {
+        // 2 primaries use write threads of 2 nodes out of 4
+        assertThat(ElasticsearchCapacityCalibrator.recommendConcurrentRequests(32, 2, 4), is(8));
+        // Uneven spread is limited by the node with the most primaries
+        assertThat(ElasticsearchCapacityCalibrator.recommendConcurrentRequests(24, 4, 3), is(4));
+    }
+}
@@ -0,0 +1,64 @@
+package org.embulk.output.elasticsearch;
+
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.output.elasticsearch.ElasticsearchCircuitBreaker.State;
+import org.embulk.spi.DataException;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class TestElasticsearchCircuitBreaker
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Test
+    public void testOpenAfterConsecutiveFailures()
+    {
+        ElasticsearchCircuitBreaker breaker = new ElasticsearchCircuitBreaker(3, 60000, true);
+        breaker.onFailure();
+        breaker.onFailure();
+        assertThat(breaker.getState(), is(State.CLOSED));
+        breaker.onFailure();
+        assertThat(breaker.getState(), is(State.OPEN));
+    }
+
+    @Test
+    public void testSuccessResetsFailures()
+    {
+        ElasticsearchCircuitBreaker breaker = new ElasticsearchCircuitBreaker(2, 60000, true);
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onFailure();
+        assertThat(breaker.getState(), is(State.CLOSED));
+    }
+
+    @Test(expected = DataException.class)
+    public void testFailFastWhileOpen()
+    {
+        ElasticsearchCircuitBreaker breaker = new ElasticsearchCircuitBreaker(1, 60000, true);
+        breaker.onFailure();
+        breaker.beforeRequest();
+    }
+
+    @Test
+    public void testHalfOpenProbe() throws Exception
+    {
+        ElasticsearchCircuitBreaker breaker = new ElasticsearchCircuitBreaker(1, 10, true);
+        breaker.onFailure();
+        Thread.sleep(20);
+        breaker.beforeRequest();
+        assertThat(breaker.getState(), is(State.HALF_OPEN));
+
+        // probe failed
+        breaker.onFailure();
+        assertThat(breaker.getState(), is(State.OPEN));
+
+        Thread.sleep(20);
+        breaker.beforeRequest();
+        breaker.onSuccess();
+        assertThat(breaker.getState(), is(State.CLOSED));
+    }
+}
@@ -0,0 +1,181 @@
+package org.embulk.output.elasticsearch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.google.common.collect.ImmutableList;
+import org.eclipse.jetty.http.HttpMethod;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigException;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.ContentType;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class TestElasticsearchContentType
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private final ElasticsearchTestUtils utils = new ElasticsearchTestUtils();
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+
+    // Client keeping the last bulk request instead of sending it
+    private static class CapturingClient
+            extends ElasticsearchHttpClient
+    {
+        private String contentType;
+        private byte[] content;
+
+        @Override
+        ElasticsearchTransport createTransport(PluginTask task)
+        {
+            return new ElasticsearchTransport()
+            {
+                @Override
+                public String send(HttpMethod method, String uri, String authorizationHeader, byte[] content, String contentType)
+                {
+                    CapturingClient.this.contentType = contentType;
+                    CapturingClient.this.content = content;
+                    return "{\"took\":1,\"errors\":false,\"items\":[]}";
+                }
+
+                @Override
+                public void close()
+                {
+                }
+            };
+        }
+    }
+
+    private ArrayNode records(String... json) throws Exception
+    {
+        ArrayNode records = mapper.createArrayNode();
+        for (String record : json) {
+            records.add(mapper.readTree(record));
+        }
+        return records;
+    }
+
+    private List<byte[]> encode(PluginTask task, ArrayNode records)
+    {
+        ForkJoinPool callingThread = null;
+        return new ElasticsearchHttpClient().encode(records, task, callingThread).getActions();
+    }
+
+    // Returns metadata and source of a Smile action, each terminated by 0xFF
+    private JsonNode[] decodeSmileAction(byte[] action) throws Exception
+    {
+        int separator = -1;
+        for (int i = 0; i < action.length; i++) {
+            if (action[i] == (byte) 0xFF) {
+                separator = i;
+                break;
+            }
+        }
+        assertThat(action[action.length - 1], is((byte) 0xFF));
+        return new JsonNode[] {
+                smileMapper.readTree(Arrays.copyOfRange(action, 0, separator)),
+                smileMapper.readTree(Arrays.copyOfRange(action, separator + 1, action.length - 1))
+        };
+    }
+
+    @Test
+    public void testFromString()
+    {
+        assertThat(ContentType.values().length, is(2));
+        assertThat(ContentType.fromString("json"), is(ContentType.JSON));
+        assertThat(ContentType.fromString("smile"), is(ContentType.SMILE));
+        assertThat(ContentType.SMILE.toString(), is("smile"));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testCborIsRejected()
+    {
+        ContentType.fromString("cbor");
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testUnknownContentType()
+    {
+        ContentType.fromString("xml");
+    }
+
+    @Test
+    public void testMediaType()
+    {
+        assertThat(ContentType.JSON.getMediaType(), is("application/json"));
+        assertThat(ContentType.SMILE.getMediaType(), is("application/smile"));
+    }
+
+    @Test
+    public void testSmileAction() throws Exception
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("id", "id")
+                .set("content_type", "smile")
+                .loadConfig(PluginTask.class);
+        List<byte[]> actions = encode(task, records("{\"id\":1,\"name\":\"x\"}", "{\"id\":2,\"name\":\"y\"}"));
+
+        assertThat(actions.size(), is(2));
+        JsonNode[] action = decodeSmileAction(actions.get(1));
+        assertThat(action[0].get("index").get("_id").asText(), is("2"));
+        assertThat(action[0].get("index").get("_index").asText(), is("index"));
+        assertThat(action[1].get("name").asText(), is("y"));
+    }
+
+    @Test
+    public void testJsonArrayFieldsInSmileAction() throws Exception
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("content_type", "smile")
+                .set("json_array_fields", ImmutableList.of("tags"))
+                .loadConfig(PluginTask.class);
+        List<byte[]> actions = encode(task, records("{\"tags\":\"[1, \\\"a\\\"]\"}"));
+
+        // Smile can't embed raw JSON, so the array is parsed and written as Smile
+        JsonNode source = decodeSmileAction(actions.get(0))[1];
+        assertThat(source.get("tags").isArray(), is(true));
+        assertThat(source.get("tags").get(1).asText(), is("a"));
+    }
+
+    @Test
+    public void testBulkRequestContentType() throws Exception
+    {
+        PluginTask task = utils.offlineConfig().loadConfig(PluginTask.class);
+        CapturingClient client = new CapturingClient();
+        client.push(records("{\"name\":\"x\"}"), task);
+
+        assertThat(client.contentType, is("application/json"));
+        assertThat(new String(client.content, "UTF-8").endsWith("\n"), is(true));
+    }
+
+    @Test
+    public void testSmileBulkRequestContentType() throws Exception
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("content_type", "smile")
+                .loadConfig(PluginTask.class);
+        CapturingClient client = new CapturingClient();
+        client.push(records("{\"name\":\"x\"}", "{\"name\":\"y\"}"), task);
+
+        assertThat(client.contentType, is("application/smile"));
+        // Two actions of metadata and source, each terminated by 0xFF
+        int separators = 0;
+        for (byte b : client.content) {
+            if (b == (byte) 0xFF) {
+                separators++;
+            }
+        }
+        assertThat(separators, is(4));
+    }
+}
@@ -0,0 +1,136 @@
+package org.embulk.output.elasticsearch;
+
+import com.google.common.collect.ImmutableList;
+import org.eclipse.jetty.http.HttpMethod;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigException;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.fail;
+
+public class TestElasticsearchDataStreamValidation
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private final ElasticsearchTestUtils utils = new ElasticsearchTestUtils();
+    private final Schema schema = Schema.builder().add("name", Types.STRING).build();
+
+    // Client of a 7.10 cluster answering GET /_aliases with the given response. Requests other than GET are recorded and
+    // answered with {}.
+    private static class RecordingClient
+            extends ElasticsearchHttpClient
+    {
+        private final List<String> changes = new ArrayList<>();
+        private final String aliases;
+
+        RecordingClient()
+        {
+            this("{}");
+        }
+
+        RecordingClient(String aliases)
+        {
+            this.aliases = aliases;
+        }
+
+        @Override
+        ElasticsearchTransport createTransport(PluginTask task)
+        {
+            return new ElasticsearchTransport()
+            {
+                @Override
+                public String send(HttpMethod method, String uri, String authorizationHeader, byte[] content, String contentType)
+                {
+                    String path = uri.substring("http://localhost:9200".length());
+                    if (method != HttpMethod.GET) {
+                        changes.add(method + " " + path);
+                        return "{}";
+                    }
+                    if (path.isEmpty() || path.equals("/")) {
+                        return "{\"version\":{\"number\":\"7.10.0\"}}";
+                    }
+                    if (path.equals("/_aliases")) {
+                        return aliases;
+                    }
+                    throw new ResponseException(404, null, "Not found", null);
+                }
+
+                @Override
+                public void close()
+                {
+                }
+            };
+        }
+    }
+
+    private void assertRejectedWithoutChanges(PluginTask task)
+    {
+        assertRejectedWithoutChanges(task, new RecordingClient());
+    }
+
+    private void assertRejectedWithoutChanges(PluginTask task, RecordingClient client)
+    {
+        try {
+            new ElasticsearchOutputPluginDelegate(client).validateOutputTask(task, schema, 1);
+            fail("ConfigException is expected");
+        }
+        catch (ConfigException ex) {
+            assertThat(client.changes.isEmpty(), is(true));
+        }
+    }
+
+    @Test
+    public void testDataStreamWithCreateMappingIsRejectedBeforePutMapping()
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("data_stream", true)
+                .set("op_type", "create")
+                .set("create_mapping", true)
+                .loadConfig(PluginTask.class);
+        assertRejectedWithoutChanges(task);
+    }
+
+    @Test
+    public void testRolloverWithoutWriteAliasIsRejectedBeforeCalibration()
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("rollover_max_docs", 1000000)
+                .set("calibration", "log")
+                .set("create_mapping", true)
+                .loadConfig(PluginTask.class);
+        assertRejectedWithoutChanges(task);
+    }
+
+    @Test
+    public void testStrictMappingWithJsonArrayFieldsIsRejectedBeforePutMapping()
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("create_mapping", true)
+                .set("dynamic_mapping", "strict")
+                .set("json_array_fields", ImmutableList.of("tags"))
+                .loadConfig(PluginTask.class);
+        assertRejectedWithoutChanges(task);
+    }
+
+    @Test
+    public void testRolloverWithSkipUnchangedIsRejected()
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("id", "name")
+                .set("skip_unchanged", true)
+                .set("rollover_max_size", "50gb")
+                .loadConfig(PluginTask.class);
+        // index is a write alias, so only skip_unchanged makes it fail
+        assertRejectedWithoutChanges(task, new RecordingClient("{\"index_000001\":{\"aliases\":{\"index\":{\"is_write_index\":true}}}}"));
+    }
+}
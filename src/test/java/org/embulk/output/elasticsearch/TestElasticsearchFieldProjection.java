@@ -0,0 +1,76 @@
+package org.embulk.output.elasticsearch;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigException;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class TestElasticsearchFieldProjection
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private final Schema schema = Schema.builder()
+            .add("id", Types.LONG)
+            .add("account", Types.LONG)
+            .add("comment", Types.STRING)
+            .add("time", Types.TIMESTAMP)
+            .build();
+
+    private final ElasticsearchTestUtils utils = new ElasticsearchTestUtils();
+
+    @Test
+    public void testExcludeAndRename()
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("id", "id")
+                .set("exclude_columns", ImmutableList.of("comment"))
+                .set("rename_columns", ImmutableMap.of("time", "@timestamp"))
+                .loadConfig(PluginTask.class);
+        ElasticsearchFieldProjection projection = ElasticsearchFieldProjection.of(task, schema);
+        assertThat(projection.getColumns().size(), is(3));
+        assertThat(projection.getFieldName(0), is("id"));
+        assertThat(projection.getFieldName(1), is("account"));
+        assertThat(projection.getFieldName(2), is("@timestamp"));
+    }
+
+    @Test
+    public void testInclude()
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("id", "id")
+                .set("include_columns", ImmutableList.of("id", "comment"))
+                .loadConfig(PluginTask.class);
+        ElasticsearchFieldProjection projection = ElasticsearchFieldProjection.of(task, schema);
+        assertThat(projection.getColumns().size(), is(2));
+        assertThat(projection.getColumns().get(1).getName(), is("comment"));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testExcludeIdColumn()
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("id", "id")
+                .set("exclude_columns", ImmutableList.of("id"))
+                .loadConfig(PluginTask.class);
+        ElasticsearchFieldProjection.of(task, schema);
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testUnknownColumn()
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("id", "id")
+                .set("include_columns", ImmutableList.of("id", "unknown"))
+                .loadConfig(PluginTask.class);
+        ElasticsearchFieldProjection.of(task, schema);
+    }
+}
@@ -0,0 +1,44 @@
+package org.embulk.output.elasticsearch;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class TestElasticsearchIdSlotMap
+{
+    @Test
+    public void testPutAndGet()
+    {
+        ElasticsearchIdSlotMap map = new ElasticsearchIdSlotMap(4);
+        map.put(10L, 0);
+        map.put(-20L, 1);
+        assertThat(map.get(10L), is(0));
+        assertThat(map.get(-20L), is(1));
+        assertThat(map.get(30L), is(-1));
+        assertThat(map.size(), is(2));
+    }
+
+    @Test
+    public void testGrowBeyondExpectedSize()
+    {
+        ElasticsearchIdSlotMap map = new ElasticsearchIdSlotMap(1);
+        for (int i = 0; i < 1000; i++) {
+            map.put(i * 0x100000000L, i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertThat(map.get(i * 0x100000000L), is(i));
+        }
+        assertThat(map.size(), is(1000));
+    }
+
+    @Test
+    public void testClear()
+    {
+        ElasticsearchIdSlotMap map = new ElasticsearchIdSlotMap(4);
+        map.put(1L, 0);
+        map.clear();
+        assertThat(map.get(1L), is(-1));
+        assertThat(map.size(), is(0));
+    }
+}
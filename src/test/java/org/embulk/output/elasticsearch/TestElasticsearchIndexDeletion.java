@@ -0,0 +1,169 @@
+package org.embulk.output.elasticsearch;
+
+import org.eclipse.jetty.http.HttpMethod;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigException;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class TestElasticsearchIndexDeletion
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private final ElasticsearchTestUtils utils = new ElasticsearchTestUtils();
+
+    private static final String SNAPSHOT_OF_OLD_INDEX = "{\"snapshots\":[{\"snapshot\":\"s1\",\"indices\":{\"old\":{}}}]}";
+    private static final String NO_SNAPSHOT = "{\"snapshots\":[]}";
+
+    // Client answering requests without Elasticsearch. Unknown paths are answered with 404.
+    private abstract static class FakeClient
+            extends ElasticsearchHttpClient
+    {
+        abstract String respond(HttpMethod method, String path);
+
+        @Override
+        ElasticsearchTransport createTransport(PluginTask task)
+        {
+            return new ElasticsearchTransport()
+            {
+                @Override
+                public String send(HttpMethod method, String uri, String authorizationHeader, byte[] content, String contentType)
+                {
+                    String response = respond(method, uri.substring("http://localhost:9200".length()));
+                    if (response == null) {
+                        throw new ResponseException(404, null, "Not found", null);
+                    }
+                    return response;
+                }
+
+                @Override
+                public void close()
+                {
+                }
+            };
+        }
+    }
+
+    private void waitSnapshot(ElasticsearchHttpClient client, String index, PluginTask task) throws Exception
+    {
+        Method method = ElasticsearchHttpClient.class.getDeclaredMethod("waitSnapshot", String.class, PluginTask.class);
+        method.setAccessible(true);
+        try {
+            method.invoke(client, index, task);
+        }
+        catch (InvocationTargetException ex) {
+            throw (Exception) ex.getCause();
+        }
+    }
+
+    @Test
+    public void testWaitSnapshotPollsUntilSnapshotOfIndexFinishes() throws Exception
+    {
+        PluginTask task = utils.offlineConfig().set("snapshot_poll_interval_millis", 1).loadConfig(PluginTask.class);
+        final AtomicInteger statusRequests = new AtomicInteger();
+        ElasticsearchHttpClient client = new FakeClient()
+        {
+            @Override
+            String respond(HttpMethod method, String path)
+            {
+                if (path.equals("/_snapshot/_status")) {
+                    return statusRequests.incrementAndGet() < 3 ? SNAPSHOT_OF_OLD_INDEX : NO_SNAPSHOT;
+                }
+                return null;
+            }
+        };
+        waitSnapshot(client, "old", task);
+        assertThat(statusRequests.get(), is(3));
+    }
+
+    @Test
+    public void testWaitSnapshotIgnoresSnapshotsOfOtherIndices() throws Exception
+    {
+        PluginTask task = utils.offlineConfig().loadConfig(PluginTask.class);
+        final AtomicInteger statusRequests = new AtomicInteger();
+        ElasticsearchHttpClient client = new FakeClient()
+        {
+            @Override
+            String respond(HttpMethod method, String path)
+            {
+                if (path.equals("/_snapshot/_status")) {
+                    statusRequests.incrementAndGet();
+                    return SNAPSHOT_OF_OLD_INDEX;
+                }
+                return null;
+            }
+        };
+        waitSnapshot(client, "other", task);
+        assertThat(statusRequests.get(), is(1));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testWaitSnapshotExpires() throws Exception
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("snapshot_poll_interval_millis", 1)
+                .set("max_snapshot_waiting_secs", 0)
+                .loadConfig(PluginTask.class);
+        ElasticsearchHttpClient client = new FakeClient()
+        {
+            @Override
+            String respond(HttpMethod method, String path)
+            {
+                return path.equals("/_snapshot/_status") ? SNAPSHOT_OF_OLD_INDEX : null;
+            }
+        };
+        waitSnapshot(client, "old", task);
+    }
+
+    @Test
+    public void testOldIndexIsDeletedInBackground() throws Exception
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("delete_old_index_async", true)
+                .set("snapshot_poll_interval_millis", 1)
+                .loadConfig(PluginTask.class);
+        final CountDownLatch snapshotFinished = new CountDownLatch(1);
+        final CountDownLatch deleted = new CountDownLatch(1);
+        ElasticsearchHttpClient client = new FakeClient()
+        {
+            @Override
+            String respond(HttpMethod method, String path)
+            {
+                if (path.equals("/_aliases")) {
+                    return method == HttpMethod.GET ? "{\"old\":{\"aliases\":{\"alias\":{}}}}" : "{\"acknowledged\":true}";
+                }
+                if (path.equals("/_alias/alias")) {
+                    return "{\"old\":{\"aliases\":{\"alias\":{}}}}";
+                }
+                if (path.equals("/_snapshot/_status")) {
+                    return snapshotFinished.getCount() > 0 ? SNAPSHOT_OF_OLD_INDEX : NO_SNAPSHOT;
+                }
+                if (path.equals("/new") || path.equals("/old")) {
+                    if (method == HttpMethod.DELETE) {
+                        deleted.countDown();
+                    }
+                    return "{}";
+                }
+                return null;
+            }
+        };
+
+        // The alias is swapped without waiting for the snapshot of the old index
+        client.reassignAlias("alias", "new", task);
+        assertThat(deleted.getCount(), is(1L));
+
+        snapshotFinished.countDown();
+        assertThat(deleted.await(10, TimeUnit.SECONDS), is(true));
+    }
+}
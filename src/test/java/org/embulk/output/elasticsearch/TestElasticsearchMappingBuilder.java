@@ -0,0 +1,97 @@
+package org.embulk.output.elasticsearch;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class TestElasticsearchMappingBuilder
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private final Schema schema = Schema.builder()
+            .add("id", Types.LONG)
+            .add("flag", Types.BOOLEAN)
+            .add("comment", Types.STRING)
+            .add("time", Types.TIMESTAMP)
+            .add("autocomplete.input", Types.STRING)
+            .build();
+
+    private final ElasticsearchTestUtils utils = new ElasticsearchTestUtils();
+
+    @Test
+    public void testDeriveMapping()
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("create_mapping", true)
+                .set("nested_fields", ImmutableMap.of("autocomplete", ImmutableList.of("input")))
+                .set("dynamic_mapping", "strict")
+                .loadConfig(PluginTask.class);
+        ObjectNode mapping = new ElasticsearchMappingBuilder(task, "5.6.3").build(schema);
+        assertThat(mapping.get("dynamic").asText(), is("strict"));
+        assertThat(mapping.at("/properties/id/type").asText(), is("long"));
+        assertThat(mapping.at("/properties/flag/type").asText(), is("boolean"));
+        assertThat(mapping.at("/properties/comment/type").asText(), is("keyword"));
+        assertThat(mapping.at("/properties/time/type").asText(), is("date"));
+        assertThat(mapping.at("/properties/autocomplete/properties/input/type").asText(), is("keyword"));
+    }
+
+    @Test
+    public void testNotAnalyzedStringBefore5()
+    {
+        PluginTask task = utils.offlineConfig().set("create_mapping", true).loadConfig(PluginTask.class);
+        ObjectNode mapping = new ElasticsearchMappingBuilder(task, "2.4.0").build(schema);
+        assertThat(mapping.at("/properties/comment/type").asText(), is("string"));
+        assertThat(mapping.at("/properties/comment/index").asText(), is("not_analyzed"));
+    }
+
+    @Test
+    public void testRenamedAndConstantFields()
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("create_mapping", true)
+                .set("rename_columns", ImmutableMap.of("time", "@timestamp"))
+                .set("constant_fields", ImmutableMap.of("source", "embulk"))
+                .loadConfig(PluginTask.class);
+        ObjectNode mapping = new ElasticsearchMappingBuilder(task, "6.8.0").build(schema);
+        assertThat(mapping.at("/properties/@timestamp/type").asText(), is("date"));
+        assertThat(mapping.at("/properties/source/type").asText(), is("keyword"));
+        assertThat(mapping.get("properties").has("time"), is(false));
+    }
+
+    @Test
+    public void testContentHashFieldWithStrictMapping()
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("create_mapping", true)
+                .set("dynamic_mapping", "strict")
+                .set("id", "id")
+                .set("skip_unchanged", true)
+                .loadConfig(PluginTask.class);
+        ObjectNode mapping = new ElasticsearchMappingBuilder(task, "7.10.0").build(schema);
+        assertThat(mapping.at("/properties/embulk_content_hash/type").asText(), is("keyword"));
+        assertThat(mapping.at("/properties/embulk_content_hash/index").asBoolean(), is(false));
+    }
+
+    @Test
+    public void testContentHashFieldBefore5()
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("create_mapping", true)
+                .set("id", "id")
+                .set("skip_unchanged", true)
+                .set("content_hash_field", "hash")
+                .loadConfig(PluginTask.class);
+        ObjectNode mapping = new ElasticsearchMappingBuilder(task, "2.4.0").build(schema);
+        assertThat(mapping.at("/properties/hash/index").asText(), is("no"));
+    }
+}
@@ -0,0 +1,122 @@
+package org.embulk.output.elasticsearch;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.eclipse.jetty.http.HttpMethod;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class TestElasticsearchMetrics
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private final ElasticsearchTestUtils utils = new ElasticsearchTestUtils();
+
+    @Test
+    public void testCounters()
+    {
+        ElasticsearchMetrics metrics = new ElasticsearchMetrics();
+        metrics.onBulkStarted();
+        metrics.onBulkStarted();
+        assertThat(metrics.getInFlightBulkRequests(), is(2));
+        metrics.onBulkFinished(true, 30);
+        metrics.onBulkFinished(false, 30);
+        metrics.onDocumentsSent(100, 2048);
+        assertThat(metrics.getInFlightBulkRequests(), is(0));
+        assertThat(metrics.getRecordsSent(), is(100L));
+        assertThat(metrics.getBytesSent(), is(2048L));
+        assertThat(metrics.getBulkRequests(), is(1L));
+        assertThat(metrics.getFailedBulkRequests(), is(1L));
+    }
+
+    @Test
+    public void testParkedBulkIsRetryNotFailure()
+    {
+        ElasticsearchMetrics metrics = new ElasticsearchMetrics();
+        metrics.onBulkStarted();
+        metrics.onBulkParked();
+        metrics.onBulkStarted();
+        metrics.onBulkFinished(true, 30);
+        assertThat(metrics.getInFlightBulkRequests(), is(0));
+        assertThat(metrics.getRetries(), is(1L));
+        assertThat(metrics.getFailedBulkRequests(), is(0L));
+        assertThat(metrics.getBulkRequests(), is(1L));
+    }
+
+    @Test
+    public void testLatencyPercentiles()
+    {
+        ElasticsearchMetrics metrics = new ElasticsearchMetrics();
+        assertThat(metrics.getLatency50thPercentileMillis(), is(0L));
+        for (int i = 0; i < 90; i++) {
+            metrics.onBulkFinished(true, 20);
+        }
+        for (int i = 0; i < 9; i++) {
+            metrics.onBulkFinished(true, 400);
+        }
+        metrics.onBulkFinished(true, 100000);
+        assertThat(metrics.getLatency50thPercentileMillis(), is(25L));
+        assertThat(metrics.getLatency95thPercentileMillis(), is(500L));
+        assertThat(metrics.getLatency99thPercentileMillis(), is(500L));
+        assertThat(metrics.getLatencyPercentileMillis(1.0), is(60000L));
+    }
+
+    @Test
+    public void testDocumentsCountedOncePerBulk() throws Exception
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("initial_retry_interval_millis", 1)
+                .loadConfig(PluginTask.class);
+        final List<byte[]> bodies = new ArrayList<>();
+        // The first item is rejected once and sent again, and the second item fails permanently
+        ElasticsearchHttpClient client = new ElasticsearchHttpClient()
+        {
+            @Override
+            ElasticsearchTransport createTransport(PluginTask task)
+            {
+                return new ElasticsearchTransport()
+                {
+                    @Override
+                    public String send(HttpMethod method, String uri, String authorizationHeader, byte[] content, String contentType)
+                    {
+                        bodies.add(content);
+                        if (bodies.size() == 1) {
+                            return "{\"took\":1,\"errors\":true,\"items\":[{\"index\":{\"status\":429}},"
+                                    + "{\"index\":{\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\"}}},{\"index\":{\"status\":201}}]}";
+                        }
+                        return "{\"took\":1,\"errors\":false,\"items\":[{\"index\":{\"status\":201}}]}";
+                    }
+
+                    @Override
+                    public void close()
+                    {
+                    }
+                };
+            }
+        };
+        ElasticsearchBulkScheduler scheduler = ElasticsearchBulkScheduler.acquire(task, client);
+        try {
+            client.push(new ObjectMapper().readTree("[{\"k\":\"v1\"},{\"k\":\"v2\"},{\"k\":\"v3\"}]"), task, scheduler);
+            ElasticsearchMetrics metrics = scheduler.getMetrics();
+            String[] lines = new String(bodies.get(0), StandardCharsets.UTF_8).split("\n");
+            long failedBytes = (lines[2] + "\n" + lines[3] + "\n").getBytes(StandardCharsets.UTF_8).length;
+            assertThat(bodies.size(), is(2));
+            assertThat(metrics.getRecordsSent(), is(2L));
+            assertThat(metrics.getBytesSent(), is(bodies.get(0).length - failedBytes));
+            assertThat(metrics.getBulkRequests(), is(2L));
+            assertThat(metrics.getRetries(), is(1L));
+        }
+        finally {
+            ElasticsearchBulkScheduler.release();
+        }
+    }
+}
@@ -297,15 +297,18 @@ public class TestElasticsearchOutputPlugin
     @Test
     public void testMode()
     {
-        assertThat(Mode.values().length, is(2));
+        assertThat(Mode.values().length, is(3));
         assertThat(Mode.valueOf("INSERT"), is(Mode.INSERT));
+        assertThat(Mode.fromString("replay"), is(Mode.REPLAY));
     }
 
     @Test
     public void testAuthMethod()
     {
-        assertThat(AuthMethod.values().length, is(2));
+        assertThat(AuthMethod.values().length, is(4));
         assertThat(AuthMethod.valueOf("BASIC"), is(AuthMethod.BASIC));
+        assertThat(AuthMethod.fromString("api_key"), is(AuthMethod.API_KEY));
+        assertThat(AuthMethod.fromString("bearer"), is(AuthMethod.BEARER));
     }
 
     @Test(expected = ConfigException.class)
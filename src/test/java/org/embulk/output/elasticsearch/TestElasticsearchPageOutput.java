@@ -0,0 +1,141 @@
+package org.embulk.output.elasticsearch;
+
+import com.google.common.collect.ImmutableMap;
+import org.eclipse.jetty.http.HttpMethod;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageTestUtils;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TransactionalPageOutput;
+import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.type.Types;
+import org.junit.Rule;
+import org.junit.Test;
+import org.msgpack.value.ValueFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class TestElasticsearchPageOutput
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private final ElasticsearchTestUtils utils = new ElasticsearchTestUtils();
+
+    private final Schema schema = Schema.builder()
+            .add("id", Types.LONG)
+            .add("name", Types.STRING)
+            .add("score", Types.DOUBLE)
+            .add("flag", Types.BOOLEAN)
+            .add("time", Types.TIMESTAMP)
+            .add("json", Types.JSON)
+            .build();
+
+    // Client keeping bodies of bulk requests instead of sending them. Bulk requests of all tasks go through its transport
+    // while it holds the bulk scheduler.
+    private static class CapturingClient
+            extends ElasticsearchHttpClient
+    {
+        private final List<byte[]> bodies = new ArrayList<>();
+
+        @Override
+        ElasticsearchTransport createTransport(PluginTask task)
+        {
+            return new ElasticsearchTransport()
+            {
+                @Override
+                public String send(HttpMethod method, String uri, String authorizationHeader, byte[] content, String contentType)
+                {
+                    synchronized (bodies) {
+                        bodies.add(content);
+                    }
+                    return "{\"took\":1,\"errors\":false,\"items\":[]}";
+                }
+
+                @Override
+                public void close()
+                {
+                }
+            };
+        }
+    }
+
+    private ConfigSource config()
+    {
+        return utils.offlineConfig().set("id", "id");
+    }
+
+    private Object[] values()
+    {
+        return new Object[] {
+                1L, "embulk", 123.45, true, Timestamp.ofEpochSecond(1422386629),
+                ValueFactory.newMap(ValueFactory.newString("k"), ValueFactory.newArray(ValueFactory.newInteger(1), ValueFactory.newString("a"))),
+                2L, null, null, null, null, null
+        };
+    }
+
+    // Runs a page through ElasticsearchOutputPlugin and returns bodies of the bulk requests
+    private List<byte[]> run(ConfigSource config, boolean directEncoder)
+    {
+        PluginTask task = config.set("direct_encoder", directEncoder).loadConfig(PluginTask.class);
+        CapturingClient client = new CapturingClient();
+        ElasticsearchBulkScheduler.acquire(task, client);
+        try {
+            TransactionalPageOutput output = new ElasticsearchOutputPlugin().open(task.dump(), schema, 0);
+            try {
+                for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, values())) {
+                    output.add(page);
+                }
+                output.finish();
+                output.commit();
+            }
+            finally {
+                output.close();
+            }
+        }
+        finally {
+            ElasticsearchBulkScheduler.release();
+        }
+        return client.bodies;
+    }
+
+    private void assertSameOutput(ConfigSource config)
+    {
+        List<byte[]> expected = run(config.deepCopy(), false);
+        List<byte[]> actual = run(config.deepCopy(), true);
+        assertThat(actual.size(), is(1));
+        assertThat(actual.size(), is(expected.size()));
+        for (int i = 0; i < actual.size(); i++) {
+            assertThat(new String(actual.get(i), StandardCharsets.UTF_8), is(new String(expected.get(i), StandardCharsets.UTF_8)));
+            assertThat(Arrays.equals(actual.get(i), expected.get(i)), is(true));
+        }
+    }
+
+    @Test
+    public void testSameOutputAsServiceRecords()
+    {
+        assertSameOutput(config());
+    }
+
+    @Test
+    public void testSameOutputWithProjection()
+    {
+        assertSameOutput(config()
+                .set("rename_columns", ImmutableMap.of("name", "title", "time", "@timestamp"))
+                .set("constant_fields", ImmutableMap.of("source", "embulk")));
+    }
+
+    @Test
+    public void testSameOutputInSmile()
+    {
+        assertSameOutput(config().set("content_type", "smile"));
+    }
+}
@@ -0,0 +1,134 @@
+package org.embulk.output.elasticsearch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import org.eclipse.jetty.http.HttpMethod;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.embulk.spi.Exec;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class TestElasticsearchRecordBuffer
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private final ElasticsearchTestUtils utils = new ElasticsearchTestUtils();
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    // Client keeping bodies of bulk requests instead of sending them
+    private static class CapturingClient
+            extends ElasticsearchHttpClient
+    {
+        private final List<String> bodies = new ArrayList<>();
+
+        @Override
+        ElasticsearchTransport createTransport(PluginTask task)
+        {
+            return new ElasticsearchTransport()
+            {
+                @Override
+                public String send(HttpMethod method, String uri, String authorizationHeader, byte[] content, String contentType)
+                {
+                    synchronized (bodies) {
+                        bodies.add(new String(content, StandardCharsets.UTF_8));
+                    }
+                    return "{\"took\":1,\"errors\":false,\"items\":[]}";
+                }
+
+                @Override
+                public void close()
+                {
+                }
+            };
+        }
+
+        // Source lines of all bulk requests in the order they were sent
+        private List<JsonNode> sources(ObjectMapper mapper) throws Exception
+        {
+            List<JsonNode> sources = new ArrayList<>();
+            for (String body : bodies) {
+                String[] lines = body.split("\n");
+                for (int i = 1; i < lines.length; i += 2) {
+                    sources.add(mapper.readTree(lines[i]));
+                }
+            }
+            return sources;
+        }
+    }
+
+    private ConfigSource config()
+    {
+        return utils.offlineConfig()
+                .set("id", "id")
+                .set("deduplicate_id", true)
+                .set("bulk_actions", 3);
+    }
+
+    private List<JsonNode> buffer(PluginTask task, String... records) throws Exception
+    {
+        CapturingClient client = new CapturingClient();
+        ElasticsearchRecordBuffer buffer = new ElasticsearchRecordBuffer("records", task, 0, client);
+        try {
+            for (String record : records) {
+                buffer.bufferJsonRecord(mapper.readTree(record), record.length());
+            }
+            buffer.commitWithTaskReportUpdated(Exec.newTaskReport());
+        }
+        finally {
+            buffer.close();
+        }
+        return client.sources(mapper);
+    }
+
+    @Test
+    public void testKeepLastRecordOfSameId() throws Exception
+    {
+        PluginTask task = config().loadConfig(PluginTask.class);
+        List<JsonNode> sources = buffer(task,
+                "{\"id\":1,\"v\":\"a\"}", "{\"id\":2,\"v\":\"b\"}", "{\"id\":1,\"v\":\"c\"}", "{\"id\":3,\"v\":\"d\"}");
+
+        // The last record takes the place of the first one in the window
+        assertThat(sources.size(), is(3));
+        assertThat(sources.get(0).get("v").asText(), is("c"));
+        assertThat(sources.get(1).get("v").asText(), is("b"));
+        assertThat(sources.get(2).get("v").asText(), is("d"));
+    }
+
+    @Test
+    public void testDuplicateInLaterWindowIsSentAfterEarlierOne() throws Exception
+    {
+        PluginTask task = config().loadConfig(PluginTask.class);
+        List<JsonNode> sources = buffer(task,
+                "{\"id\":1,\"v\":\"a\"}", "{\"id\":2,\"v\":\"b\"}", "{\"id\":3,\"v\":\"c\"}", "{\"id\":1,\"v\":\"d\"}");
+
+        // Windows are sent in order, so Elasticsearch keeps the last record
+        assertThat(sources.size(), is(4));
+        assertThat(sources.get(0).get("v").asText(), is("a"));
+        assertThat(sources.get(3).get("v").asText(), is("d"));
+    }
+
+    @Test
+    public void testSameIdInDifferentIndicesIsKept() throws Exception
+    {
+        PluginTask task = config()
+                .set("index_fields", ImmutableList.of("_index"))
+                .loadConfig(PluginTask.class);
+        List<JsonNode> sources = buffer(task,
+                "{\"id\":1,\"_index\":\"i1\",\"v\":\"a\"}", "{\"id\":1,\"_index\":\"i2\",\"v\":\"b\"}", "{\"id\":1,\"_index\":\"i1\",\"v\":\"c\"}");
+
+        assertThat(sources.size(), is(2));
+        assertThat(sources.get(0).get("v").asText(), is("c"));
+        assertThat(sources.get(1).get("v").asText(), is("b"));
+    }
+}
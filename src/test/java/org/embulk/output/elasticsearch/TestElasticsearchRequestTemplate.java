@@ -0,0 +1,172 @@
+package org.embulk.output.elasticsearch;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class TestElasticsearchRequestTemplate
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ElasticsearchTestUtils utils = new ElasticsearchTestUtils();
+
+    @Test
+    public void testCreateRequestUri()
+    {
+        PluginTask task = utils.offlineConfig().loadConfig(PluginTask.class);
+        ElasticsearchRequestTemplate template = new ElasticsearchRequestTemplate(task);
+        assertThat(template.createRequestUri("/_cluster/health"), is("http://localhost:9200/_cluster/health"));
+        assertThat(template.createRequestUri("index"), is("http://localhost:9200/index"));
+    }
+
+    @Test
+    public void testCreateRequestUriWithSsl()
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("nodes", ImmutableList.of(ImmutableMap.of("host", "es.example.com", "port", 9243)))
+                .set("use_ssl", true)
+                .loadConfig(PluginTask.class);
+        ElasticsearchRequestTemplate template = new ElasticsearchRequestTemplate(task);
+        assertThat(template.createRequestUri("/"), is("https://es.example.com:9243/"));
+    }
+
+    @Test
+    public void testBulkPathFollowsIndex()
+    {
+        PluginTask task = utils.offlineConfig().loadConfig(PluginTask.class);
+        ElasticsearchRequestTemplate template = new ElasticsearchRequestTemplate(task);
+        assertThat(template.getBulkPath(), is("/index/type/_bulk"));
+        // Replace mode switches the index to a new one in validateOutputTask
+        task.setIndex("index_20170101-000000");
+        assertThat(template.getBulkPath(), is("/index_20170101-000000/type/_bulk"));
+    }
+
+    @Test
+    public void testBulkPathWithPipeline()
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("pipeline", "geo ip")
+                .loadConfig(PluginTask.class);
+        ElasticsearchRequestTemplate template = new ElasticsearchRequestTemplate(task);
+        assertThat(template.getBulkPath(), is("/index/type/_bulk?pipeline=geo+ip"));
+    }
+
+    @Test
+    public void testBulkPathOfDataStream()
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("data_stream", true)
+                .set("op_type", "create")
+                .loadConfig(PluginTask.class);
+        ElasticsearchRequestTemplate template = new ElasticsearchRequestTemplate(task);
+        assertThat(template.getBulkPath(), is("/index/_bulk"));
+    }
+
+    @Test
+    public void testBulkRequestsToIngestNodes()
+    {
+        PluginTask task = utils.offlineConfig().loadConfig(PluginTask.class);
+        ElasticsearchRequestTemplate template = new ElasticsearchRequestTemplate(task);
+        template.setIngestBaseUris(ImmutableList.of("http://10.0.0.1:9200"));
+        assertThat(template.createRequestUri(template.getBulkPath()), is("http://10.0.0.1:9200/index/type/_bulk"));
+        assertThat(template.createRequestUri("/_cluster/health"), is("http://localhost:9200/_cluster/health"));
+    }
+
+    @Test
+    public void testNoAuthorizationHeader()
+    {
+        PluginTask task = utils.offlineConfig().loadConfig(PluginTask.class);
+        assertThat(new ElasticsearchRequestTemplate(task).getAuthorizationHeader(), is(""));
+    }
+
+    @Test
+    public void testBasicAuthorizationHeader()
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("auth_method", "basic")
+                .set("user", "username")
+                .set("password", "password")
+                .loadConfig(PluginTask.class);
+        assertThat(new ElasticsearchRequestTemplate(task).getAuthorizationHeader(), is("Basic dXNlcm5hbWU6cGFzc3dvcmQ="));
+    }
+
+    @Test
+    public void testApiKeyAuthorizationHeader()
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("auth_method", "api_key")
+                .set("api_key", "ZW5jb2RlZA==")
+                .loadConfig(PluginTask.class);
+        assertThat(new ElasticsearchRequestTemplate(task).getAuthorizationHeader(), is("ApiKey ZW5jb2RlZA=="));
+    }
+
+    @Test
+    public void testApiKeyAuthorizationHeaderWithId()
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("auth_method", "api_key")
+                .set("api_key_id", "id")
+                .set("api_key", "key")
+                .loadConfig(PluginTask.class);
+        // base64("id:key")
+        assertThat(new ElasticsearchRequestTemplate(task).getAuthorizationHeader(), is("ApiKey aWQ6a2V5"));
+    }
+
+    @Test
+    public void testBearerAuthorizationHeader()
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("auth_method", "bearer")
+                .set("bearer_token", "token")
+                .loadConfig(PluginTask.class);
+        assertThat(new ElasticsearchRequestTemplate(task).getAuthorizationHeader(), is("Bearer token"));
+    }
+
+    @Test
+    public void testBearerTokenFileIsReloaded() throws Exception
+    {
+        File tokenFile = folder.newFile("token");
+        Files.write(tokenFile.toPath(), "first\n".getBytes(StandardCharsets.UTF_8));
+        PluginTask task = utils.offlineConfig()
+                .set("auth_method", "bearer")
+                .set("bearer_token_file", tokenFile.getAbsolutePath())
+                .set("auth_refresh_interval_millis", 0)
+                .loadConfig(PluginTask.class);
+        ElasticsearchRequestTemplate template = new ElasticsearchRequestTemplate(task);
+        assertThat(template.getAuthorizationHeader(), is("Bearer first"));
+
+        Files.write(tokenFile.toPath(), "second\n".getBytes(StandardCharsets.UTF_8));
+        assertThat(template.getAuthorizationHeader(), is("Bearer second"));
+    }
+
+    @Test
+    public void testBearerTokenFileIsCachedWithinInterval() throws Exception
+    {
+        File tokenFile = folder.newFile("token");
+        Files.write(tokenFile.toPath(), "first".getBytes(StandardCharsets.UTF_8));
+        PluginTask task = utils.offlineConfig()
+                .set("auth_method", "bearer")
+                .set("bearer_token_file", tokenFile.getAbsolutePath())
+                .loadConfig(PluginTask.class);
+        ElasticsearchRequestTemplate template = new ElasticsearchRequestTemplate(task);
+        assertThat(template.getAuthorizationHeader(), is("Bearer first"));
+
+        Files.write(tokenFile.toPath(), "second".getBytes(StandardCharsets.UTF_8));
+        assertThat(template.getAuthorizationHeader(), is("Bearer first"));
+    }
+}
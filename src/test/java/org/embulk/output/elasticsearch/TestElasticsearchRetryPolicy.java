@@ -0,0 +1,63 @@
+package org.embulk.output.elasticsearch;
+
+import org.embulk.output.elasticsearch.ElasticsearchRetryPolicy.Backoff;
+import org.embulk.output.elasticsearch.ElasticsearchRetryPolicy.FailureType;
+import org.embulk.output.elasticsearch.ElasticsearchRetryPolicy.RetryState;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertTrue;
+
+public class TestElasticsearchRetryPolicy
+{
+    @Test
+    public void testExponentialBackoff()
+    {
+        ElasticsearchRetryPolicy policy = new ElasticsearchRetryPolicy(Backoff.EXPONENTIAL, 1000, 3000, 3, 3, 3, 0);
+        RetryState state = policy.newRetryState();
+        assertThat(policy.nextRetryIntervalMillis(state, FailureType.SERVER_ERROR, -1), is(1000L));
+        assertThat(policy.nextRetryIntervalMillis(state, FailureType.SERVER_ERROR, -1), is(2000L));
+        assertThat(policy.nextRetryIntervalMillis(state, FailureType.SERVER_ERROR, -1), is(3000L));
+        assertThat(policy.nextRetryIntervalMillis(state, FailureType.SERVER_ERROR, -1), is(-1L));
+    }
+
+    @Test
+    public void testDecorrelatedJitterWithinBounds()
+    {
+        ElasticsearchRetryPolicy policy = new ElasticsearchRetryPolicy(Backoff.DECORRELATED_JITTER, 100, 5000, 100, 100, 100, 0);
+        RetryState state = policy.newRetryState();
+        for (int i = 0; i < 50; i++) {
+            long interval = policy.nextRetryIntervalMillis(state, FailureType.CONNECTION, -1);
+            assertTrue(interval >= 100 && interval <= 5000);
+        }
+    }
+
+    @Test
+    public void testSeparateBudgets()
+    {
+        ElasticsearchRetryPolicy policy = new ElasticsearchRetryPolicy(Backoff.EXPONENTIAL, 1, 1, 0, 1, 0, 0);
+        RetryState state = policy.newRetryState();
+        assertThat(policy.nextRetryIntervalMillis(state, FailureType.CONNECTION, -1), is(-1L));
+        assertThat(policy.nextRetryIntervalMillis(state, FailureType.REJECTED, -1), is(1L));
+        assertThat(policy.nextRetryIntervalMillis(state, FailureType.REJECTED, -1), is(-1L));
+    }
+
+    @Test
+    public void testRetryAfterAndTimeBudget()
+    {
+        ElasticsearchRetryPolicy policy = new ElasticsearchRetryPolicy(Backoff.EXPONENTIAL, 10, 100, 5, 5, 5, 2500);
+        RetryState state = policy.newRetryState();
+        assertThat(policy.nextRetryIntervalMillis(state, FailureType.REJECTED, ElasticsearchRetryPolicy.parseRetryAfterMillis("2")), is(2000L));
+        // the time budget is shared by all requests of the task
+        assertThat(policy.nextRetryIntervalMillis(policy.newRetryState(), FailureType.REJECTED, 1000), is(-1L));
+    }
+
+    @Test
+    public void testParseRetryAfter()
+    {
+        assertThat(ElasticsearchRetryPolicy.parseRetryAfterMillis("3"), is(3000L));
+        assertThat(ElasticsearchRetryPolicy.parseRetryAfterMillis(null), is(-1L));
+        assertThat(ElasticsearchRetryPolicy.parseRetryAfterMillis("Wed, 21 Oct 2015 07:28:00 GMT"), is(-1L));
+    }
+}
@@ -0,0 +1,35 @@
+package org.embulk.output.elasticsearch;
+
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class TestElasticsearchRolloverManager
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private final ElasticsearchTestUtils utils = new ElasticsearchTestUtils();
+
+    @Test
+    public void testDisabledWithoutConditions()
+    {
+        PluginTask task = utils.offlineConfig().loadConfig(PluginTask.class);
+        assertThat(ElasticsearchRolloverManager.isEnabled(task), is(false));
+    }
+
+    @Test
+    public void testConditions()
+    {
+        PluginTask task = utils.offlineConfig()
+                .set("rollover_max_docs", 1000000)
+                .set("rollover_max_size", "50gb")
+                .loadConfig(PluginTask.class);
+        assertThat(ElasticsearchRolloverManager.isEnabled(task), is(true));
+        assertThat(ElasticsearchRolloverManager.createConditions(task).toString(), is("{\"max_docs\":1000000,\"max_size\":\"50gb\"}"));
+    }
+}
@@ -0,0 +1,50 @@
+package org.embulk.output.elasticsearch;
+
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.output.elasticsearch.ElasticsearchOutputPluginDelegate.PluginTask;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class TestElasticsearchSslContext
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private final ElasticsearchTestUtils utils = new ElasticsearchTestUtils();
+
+    @Test
+    public void testSameKeyForSameTlsOptions()
+    {
+        PluginTask task1 = utils.offlineConfig().set("use_ssl", true).set("ssl_verify_hostname", true).loadConfig(PluginTask.class);
+        PluginTask task2 = utils.offlineConfig().set("use_ssl", true).set("ssl_verify_hostname", true).set("index", "other").loadConfig(PluginTask.class);
+        assertThat(ElasticsearchSslContext.createKey(task1).equals(ElasticsearchSslContext.createKey(task2)), is(true));
+    }
+
+    @Test
+    public void testDifferentKeyForDifferentTruststore()
+    {
+        PluginTask task1 = utils.offlineConfig().set("use_ssl", true).loadConfig(PluginTask.class);
+        PluginTask task2 = utils.offlineConfig().set("use_ssl", true).set("ssl_truststore_path", "/etc/truststore.jks").loadConfig(PluginTask.class);
+        assertThat(ElasticsearchSslContext.createKey(task1).equals(ElasticsearchSslContext.createKey(task2)), is(false));
+    }
+
+    @Test
+    public void testPreferredCipherSuitesFirstWithoutAddingOthers()
+    {
+        String[] ordered = ElasticsearchSslContext.orderCipherSuites(new String[] {
+                "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256",
+                "TLS_RSA_WITH_AES_128_CBC_SHA",
+                "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+                "TLS_AES_128_GCM_SHA256"
+        });
+        assertThat(ordered, is(new String[] {
+                "TLS_AES_128_GCM_SHA256",
+                "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+                "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256",
+                "TLS_RSA_WITH_AES_128_CBC_SHA"
+        }));
+    }
+}